@@ -0,0 +1,88 @@
+package ch.trillian.dufour;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.util.Log;
+
+// the loaded tiles dropped by the tile cache of any layer by their key, least recently used first, bounded by the
+// bytes of their bitmaps so zooming out and back in doesn't load them again (used by the GUI thread only)
+public class BitmapCache {
+
+  private static final String TAG = "BITMAPS";
+
+  private final LinkedHashMap<Long, Tile> tiles = new LinkedHashMap<Long, Tile>(64, 0.75f, true);
+
+  // the pool taking the bitmaps of evicted tiles
+  private final BitmapPool bitmapPool;
+
+  // the maximum and current number of bytes of the cached bitmaps (a bitmap shared by several tiles is counted for each)
+  private final long maxBytes;
+  private long bytes;
+
+  public BitmapCache(long maxBytes, BitmapPool bitmapPool) {
+
+    this.maxBytes = maxBytes;
+    this.bitmapPool = bitmapPool;
+  }
+
+  // takes over a loaded tile together with it's bitmap, evicting the least recently used tiles if necessary
+  public void put(Tile tile) {
+
+    if (tile.getBitmap() == null) {
+      return;
+    }
+
+    Tile old = tiles.put(tile.getKey(), tile);
+    if (old != null) {
+      evict(old);
+    }
+    bytes += tile.getBitmap().getByteCount();
+
+    trimToSize(maxBytes);
+  }
+
+  // hands a cached tile back and removes it from the cache, returns null if there's no such tile
+  public Tile remove(long key) {
+
+    Tile tile = tiles.remove(key);
+    if (tile != null) {
+      bytes -= tile.getBitmap().getByteCount();
+    }
+
+    return tile;
+  }
+
+  // returns a cached tile leaving it in the cache, returns null if there's no such tile
+  public Tile peek(long key) {
+
+    return tiles.get(key);
+  }
+
+  public void trimToSize(long maxBytes) {
+
+    Iterator<Tile> iterator = tiles.values().iterator();
+    while (bytes > maxBytes && iterator.hasNext()) {
+      Tile tile = iterator.next();
+      iterator.remove();
+      evict(tile);
+    }
+  }
+
+  public void evictAll() {
+
+    Log.i(TAG, "Evicting " + tiles.size() + " tiles, " + bytes + " bytes.");
+
+    trimToSize(0);
+  }
+
+  private void evict(Tile tile) {
+
+    bytes -= tile.getBitmap().getByteCount();
+
+    if (bitmapPool != null) {
+      bitmapPool.release(tile.getBitmap());
+    }
+    tile.setBitmap(null);
+  }
+}
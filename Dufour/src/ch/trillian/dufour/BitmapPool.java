@@ -0,0 +1,214 @@
+package ch.trillian.dufour;
+
+import java.io.InputStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+public class BitmapPool {
+
+  private static final String TAG = "POOL";
+
+  // the bitmaps ready for reuse, oldest first so a bitmap that has just been released isn't drawn over too soon
+  private final ArrayDeque<Bitmap> bitmaps = new ArrayDeque<Bitmap>();
+
+  // the maximum number of bitmaps kept for reuse
+  private int capacity;
+
+  // the decoded bitmaps by the hash of their image and by themselves, shared by all tiles with the same image,
+  // only weakly referenced so bitmaps of tiles dropped without being released don't stay around
+  private final HashMap<Long, SharedBitmap> sharedByHash = new HashMap<Long, SharedBitmap>();
+  private final WeakHashMap<Bitmap, SharedBitmap> sharedByBitmap = new WeakHashMap<Bitmap, SharedBitmap>();
+  private final ReferenceQueue<Bitmap> collected = new ReferenceQueue<Bitmap>();
+
+  private static class SharedBitmap extends WeakReference<Bitmap> {
+
+    private final long hash;
+    private int refCount = 1;
+
+    public SharedBitmap(Bitmap bitmap, long hash, ReferenceQueue<Bitmap> queue) {
+
+      super(bitmap, queue);
+
+      this.hash = hash;
+    }
+  }
+
+  public BitmapPool(int capacity) {
+
+    this.capacity = capacity;
+  }
+
+  public synchronized void setCapacity(int capacity) {
+
+    this.capacity = capacity;
+
+    while (bitmaps.size() > capacity) {
+      bitmaps.poll();
+    }
+  }
+
+  // hands a bitmap no longer used by a tile over for reuse once no other tile uses it anymore
+  public synchronized void release(Bitmap bitmap) {
+
+    if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()) {
+      return;
+    }
+
+    SharedBitmap shared = sharedByBitmap.get(bitmap);
+    if (shared != null) {
+      if (--shared.refCount > 0) {
+        return;
+      }
+      sharedByBitmap.remove(bitmap);
+      sharedByHash.remove(shared.hash);
+    }
+
+    if (bitmaps.size() < capacity) {
+      bitmaps.offer(bitmap);
+    }
+  }
+
+  // adds a tile to the users of a bitmap returned by decode(long, ByteBuffer)
+  public synchronized void retain(Bitmap bitmap) {
+
+    SharedBitmap shared = sharedByBitmap.get(bitmap);
+    if (shared != null) {
+      shared.refCount++;
+    }
+  }
+
+  // returns the bitmap of an image with the given hash if it has been decoded already or decodes it otherwise,
+  // every bitmap returned must be released by the tile using it
+  public Bitmap decode(long hash, ByteBuffer image) {
+
+    synchronized (this) {
+      removeCollected();
+      SharedBitmap shared = sharedByHash.get(hash);
+      Bitmap bitmap = shared != null ? shared.get() : null;
+      if (bitmap != null) {
+        shared.refCount++;
+        return bitmap;
+      }
+    }
+
+    Bitmap bitmap = decode(image);
+    if (bitmap == null) {
+      return null;
+    }
+
+    synchronized (this) {
+
+      // decoded by another thread in the meantime
+      SharedBitmap shared = sharedByHash.get(hash);
+      Bitmap sharedBitmap = shared != null ? shared.get() : null;
+      if (sharedBitmap != null) {
+        shared.refCount++;
+        if (bitmap.isMutable() && bitmaps.size() < capacity) {
+          bitmaps.offer(bitmap);
+        }
+        return sharedBitmap;
+      }
+
+      shared = new SharedBitmap(bitmap, hash, collected);
+      sharedByHash.put(hash, shared);
+      sharedByBitmap.put(bitmap, shared);
+    }
+
+    return bitmap;
+  }
+
+  // forgets the bitmaps which have been garbage collected (must be called holding our lock)
+  private void removeCollected() {
+
+    SharedBitmap shared;
+    while ((shared = (SharedBitmap) collected.poll()) != null) {
+      if (sharedByHash.get(shared.hash) == shared) {
+        sharedByHash.remove(shared.hash);
+      }
+    }
+  }
+
+  // decodes an encoded image into a reused bitmap if one is available
+  public Bitmap decode(byte[] image) {
+
+    return decode(ByteBuffer.wrap(image));
+  }
+
+  public Bitmap decode(ByteBuffer image) {
+
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inMutable = true;
+
+    synchronized (this) {
+      options.inBitmap = bitmaps.poll();
+    }
+
+    if (options.inBitmap != null) {
+      try {
+        Bitmap bitmap = decode(image, options);
+        if (bitmap != null) {
+          return bitmap;
+        }
+      } catch (IllegalArgumentException e) {
+        // pooled bitmap doesn't fit the image, drop it and decode into a new one
+        Log.w(TAG, "Can't reuse bitmap: " + e.getMessage());
+      }
+      options.inBitmap = null;
+    }
+
+    return decode(image, options);
+  }
+
+  private static Bitmap decode(ByteBuffer image, BitmapFactory.Options options) {
+
+    if (image.hasArray()) {
+      return BitmapFactory.decodeByteArray(image.array(), image.arrayOffset() + image.position(), image.remaining(), options);
+    }
+
+    // read a memory-mapped image in place instead of copying it into an array first
+    return BitmapFactory.decodeStream(new ByteBufferInputStream(image.duplicate()), null, options);
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+
+      length = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, length);
+
+      return length;
+    }
+
+    @Override
+    public int available() {
+
+      return buffer.remaining();
+    }
+  }
+}
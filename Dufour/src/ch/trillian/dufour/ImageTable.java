@@ -0,0 +1,83 @@
+package ch.trillian.dufour;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.database.sqlite.SQLiteDatabase;
+
+// the distinct tile images by the hash of their content, each referenced by any number of tiles
+// (the reference counts are kept up to date by triggers on the tile table)
+public class ImageTable {
+
+  public static final String TABLE_NAME = "IMAGE";
+  public static final String COL_HASH = "IMAGE_HASH";
+  public static final String COL_IMAGE = "IMAGE";
+  public static final String COL_REF_COUNT = "REF_COUNT";
+
+  private static final String SQL_CREATE_TABLE = "CREATE TABLE "
+      + TABLE_NAME
+      + "("
+      + COL_HASH + " INTEGER PRIMARY KEY, "
+      + COL_IMAGE + " BLOB NOT NULL, "
+      + COL_REF_COUNT + " INTEGER NOT NULL"
+      + ");";
+
+  private static final String SQL_CREATE_INSERT_TRIGGER = "CREATE TRIGGER " + TABLE_NAME + "_INSERT AFTER INSERT ON " + TileTable.TABLE_NAME + " BEGIN "
+      + addReference("NEW")
+      + "END";
+
+  private static final String SQL_CREATE_DELETE_TRIGGER = "CREATE TRIGGER " + TABLE_NAME + "_DELETE AFTER DELETE ON " + TileTable.TABLE_NAME + " BEGIN "
+      + removeReference("OLD")
+      + "END";
+
+  private static final String SQL_CREATE_UPDATE_TRIGGER = "CREATE TRIGGER " + TABLE_NAME + "_UPDATE AFTER UPDATE OF " + TileTable.COL_IMAGE_HASH + " ON " + TileTable.TABLE_NAME
+      + " WHEN OLD." + TileTable.COL_IMAGE_HASH + " <> NEW." + TileTable.COL_IMAGE_HASH + " BEGIN "
+      + addReference("NEW")
+      + removeReference("OLD")
+      + "END";
+
+  // adds an image that isn't referenced yet unless it exists already, must be followed by inserting or updating the tile referencing it
+  public static final String SQL_INSERT_IMAGE = "INSERT OR IGNORE INTO " + TABLE_NAME + " (" + COL_HASH + ", " + COL_IMAGE + ", " + COL_REF_COUNT + ") VALUES (?, ?, 0)";
+
+  public static void onCreate(SQLiteDatabase database) {
+
+    database.execSQL(SQL_CREATE_TABLE);
+    database.execSQL(SQL_CREATE_INSERT_TRIGGER);
+    database.execSQL(SQL_CREATE_DELETE_TRIGGER);
+    database.execSQL(SQL_CREATE_UPDATE_TRIGGER);
+  }
+
+  private static String addReference(String row) {
+
+    return "UPDATE " + TABLE_NAME + " SET " + COL_REF_COUNT + " = " + COL_REF_COUNT + " + 1 WHERE " + COL_HASH + " = " + row + "." + TileTable.COL_IMAGE_HASH + "; ";
+  }
+
+  // removes a reference and the image itself once it isn't referenced anymore
+  private static String removeReference(String row) {
+
+    return "UPDATE " + TABLE_NAME + " SET " + COL_REF_COUNT + " = " + COL_REF_COUNT + " - 1 WHERE " + COL_HASH + " = " + row + "." + TileTable.COL_IMAGE_HASH + "; "
+        + "DELETE FROM " + TABLE_NAME + " WHERE " + COL_HASH + " = " + row + "." + TileTable.COL_IMAGE_HASH + " AND " + COL_REF_COUNT + " <= 0; ";
+  }
+
+  // the first 64 bits of the MD5 digest of an image, never 0
+  public static long getHash(byte[] image) {
+
+    return getHash(ByteBuffer.wrap(image));
+  }
+
+  public static long getHash(ByteBuffer image) {
+
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+
+    digest.update(image.duplicate());
+    long hash = ByteBuffer.wrap(digest.digest()).getLong();
+
+    return hash != 0 ? hash : 1;
+  }
+}
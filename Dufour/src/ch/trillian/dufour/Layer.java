@@ -1,5 +1,8 @@
 package ch.trillian.dufour;
 
+import java.net.MalformedURLException;
+import java.net.URL;
+
 import android.location.Location;
 
 
@@ -8,6 +11,7 @@ public class Layer {
   private final String name; 
   private final String urlName; 
   private final String urlFormat;
+  private final String urlHost;
   
   // the top left corner in ch1903 coordinates
   private final float left;
@@ -34,6 +38,9 @@ public class Layer {
   private float minScale;
   private float maxScale;
   
+  // whether this layer's stored tiles are never evicted
+  private boolean pinned;
+  
   private Map map;
   private int index;
   
@@ -42,6 +49,7 @@ public class Layer {
     this.name = name;
     this.urlName = urlName;
     this.urlFormat = urlFormat;
+    this.urlHost = parseUrlHost(urlName, urlFormat);
     this.left = left;
     this.top = top;
     this.meterPerPixel = meterPerPixel;
@@ -147,6 +155,31 @@ public class Layer {
     return topTile < bottomTile ? topTile + y : topTile - y;
   }
   
+  // the inverse of getUrlX() and getUrlY()
+  public int getTileX(int urlX) {
+    
+    return leftTile < rightTile ? urlX - leftTile : leftTile - urlX;
+  }
+  
+  public int getTileY(int urlY) {
+    
+    return topTile < bottomTile ? urlY - topTile : topTile - urlY;
+  }
+  
+  public String getUrlHost() {
+    
+    return urlHost;
+  }
+  
+  private static String parseUrlHost(String urlName, String urlFormat) {
+    
+    try {
+      return new URL(String.format(urlFormat, urlName, 0, 0)).getHost();
+    } catch (MalformedURLException e) {
+      return "";
+    }
+  }
+  
   public boolean hasTile(int x, int y) {
 
     return x >= 0 && x < tilesX && y >= 0 && y < tilesY;
@@ -156,6 +189,10 @@ public class Layer {
     return name;
   }
 
+  public String getUrlName() {
+    return urlName;
+  }
+
   public int getTileSizeX() {
     return tileSizeX;
   }
@@ -203,4 +240,12 @@ public class Layer {
   public void setMaxScale(float maxScale) {
     this.maxScale = maxScale;
   }
+
+  public boolean isPinned() {
+    return pinned;
+  }
+
+  public void setPinned(boolean pinned) {
+    this.pinned = pinned;
+  }
 }
@@ -0,0 +1,127 @@
+package ch.trillian.dufour;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+// the number of tiles and bytes of tile images per layer and how many of these bytes belong to imported tiles,
+// kept up to date by triggers on the tile table
+public class LayerStatsTable {
+
+  public static final String TABLE_NAME = "LAYER_STATS";
+  public static final String COL_LAYER = "LAYER";
+  public static final String COL_TILE_COUNT = "TILE_COUNT";
+  public static final String COL_TILE_BYTES = "TILE_BYTES";
+  public static final String COL_IMPORTED_BYTES = "IMPORTED_BYTES";
+
+  // the layer index of a tile key (see Tile.getKey())
+  private static final String LAYER_OF_NEW = "(NEW." + TileTable.COL_KEY + " >> 48)";
+  private static final String LAYER_OF_OLD = "(OLD." + TileTable.COL_KEY + " >> 48)";
+
+  private static final String SQL_CREATE_TABLE = "CREATE TABLE "
+      + TABLE_NAME
+      + "("
+      + COL_LAYER + " INTEGER PRIMARY KEY, "
+      + COL_TILE_COUNT + " INTEGER NOT NULL, "
+      + COL_TILE_BYTES + " INTEGER NOT NULL, "
+      + COL_IMPORTED_BYTES + " INTEGER NOT NULL DEFAULT 0"
+      + ");";
+
+  // the bytes of an imported tile (IMPORTED is 0 or 1)
+  private static final String IMPORTED_BYTES_OF_NEW = "NEW." + TileTable.COL_IMPORTED + " * NEW." + TileTable.COL_SIZE;
+  private static final String IMPORTED_BYTES_OF_OLD = "OLD." + TileTable.COL_IMPORTED + " * OLD." + TileTable.COL_SIZE;
+
+  private static final String SQL_CREATE_INSERT_TRIGGER = "CREATE TRIGGER " + TABLE_NAME + "_INSERT AFTER INSERT ON " + TileTable.TABLE_NAME + " BEGIN "
+      + "INSERT OR IGNORE INTO " + TABLE_NAME + " (" + COL_LAYER + ", " + COL_TILE_COUNT + ", " + COL_TILE_BYTES + ") VALUES (" + LAYER_OF_NEW + ", 0, 0); "
+      + "UPDATE " + TABLE_NAME + " SET " + COL_TILE_COUNT + " = " + COL_TILE_COUNT + " + 1, " + COL_TILE_BYTES + " = " + COL_TILE_BYTES + " + NEW." + TileTable.COL_SIZE + ", " + COL_IMPORTED_BYTES + " = " + COL_IMPORTED_BYTES + " + " + IMPORTED_BYTES_OF_NEW + " WHERE " + COL_LAYER + " = " + LAYER_OF_NEW + "; "
+      + "END";
+
+  private static final String SQL_CREATE_DELETE_TRIGGER = "CREATE TRIGGER " + TABLE_NAME + "_DELETE AFTER DELETE ON " + TileTable.TABLE_NAME + " BEGIN "
+      + "UPDATE " + TABLE_NAME + " SET " + COL_TILE_COUNT + " = " + COL_TILE_COUNT + " - 1, " + COL_TILE_BYTES + " = " + COL_TILE_BYTES + " - OLD." + TileTable.COL_SIZE + ", " + COL_IMPORTED_BYTES + " = " + COL_IMPORTED_BYTES + " - " + IMPORTED_BYTES_OF_OLD + " WHERE " + COL_LAYER + " = " + LAYER_OF_OLD + "; "
+      + "END";
+
+  private static final String SQL_CREATE_UPDATE_TRIGGER = "CREATE TRIGGER " + TABLE_NAME + "_UPDATE AFTER UPDATE OF " + TileTable.COL_SIZE + ", " + TileTable.COL_IMPORTED + " ON " + TileTable.TABLE_NAME + " BEGIN "
+      + "UPDATE " + TABLE_NAME + " SET " + COL_TILE_BYTES + " = " + COL_TILE_BYTES + " - OLD." + TileTable.COL_SIZE + " + NEW." + TileTable.COL_SIZE + ", "
+      + COL_IMPORTED_BYTES + " = " + COL_IMPORTED_BYTES + " - " + IMPORTED_BYTES_OF_OLD + " + " + IMPORTED_BYTES_OF_NEW + " WHERE " + COL_LAYER + " = " + LAYER_OF_NEW + "; "
+      + "END";
+
+  private static final String SQL_GET_TOTALS = "SELECT IFNULL(SUM(" + COL_TILE_COUNT + "), 0), IFNULL(SUM(" + COL_TILE_BYTES + "), 0) FROM " + TABLE_NAME;
+  private static final String SQL_GET_LAYER = "SELECT " + COL_TILE_COUNT + ", " + COL_TILE_BYTES + " FROM " + TABLE_NAME + " WHERE " + COL_LAYER + " = ?";
+  private static final String SQL_GET_EVICTABLE_BYTES = "SELECT " + COL_LAYER + ", " + COL_TILE_BYTES + " - " + COL_IMPORTED_BYTES + " FROM " + TABLE_NAME;
+
+  public static void onCreate(SQLiteDatabase database) {
+
+    database.execSQL(SQL_CREATE_TABLE);
+    createTriggers(database);
+  }
+
+  private static void createTriggers(SQLiteDatabase database) {
+
+    database.execSQL(SQL_CREATE_INSERT_TRIGGER);
+    database.execSQL(SQL_CREATE_DELETE_TRIGGER);
+    database.execSQL(SQL_CREATE_UPDATE_TRIGGER);
+  }
+
+  public static void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
+
+    // rebuilt from the tiles, replacing the META table of version 3 which only held the total number of bytes, the
+    // PINNED column of version 6 and the triggers of versions 4 to 6 which didn't count imported bytes (the triggers
+    // are gone already if the tile table has been rebuilt by version 5, see TileTable)
+    if (oldVersion < 7) {
+      database.execSQL("DROP TABLE IF EXISTS META");
+      database.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+      database.execSQL("DROP TRIGGER IF EXISTS " + TABLE_NAME + "_INSERT");
+      database.execSQL("DROP TRIGGER IF EXISTS " + TABLE_NAME + "_DELETE");
+      database.execSQL("DROP TRIGGER IF EXISTS " + TABLE_NAME + "_UPDATE");
+      onCreate(database);
+      database.execSQL("INSERT INTO " + TABLE_NAME + " (" + COL_LAYER + ", " + COL_TILE_COUNT + ", " + COL_TILE_BYTES + ", " + COL_IMPORTED_BYTES + ") SELECT " + TileTable.COL_KEY + " >> 48, COUNT(*), SUM(" + TileTable.COL_SIZE + "), SUM(" + TileTable.COL_IMPORTED + " * " + TileTable.COL_SIZE + ") FROM " + TileTable.TABLE_NAME + " GROUP BY 1");
+    }
+  }
+
+  // returns the number of tiles and bytes of all layers
+  public static long[] getTotals(SQLiteDatabase database) {
+
+    return getStats(database, SQL_GET_TOTALS, new String[] {});
+  }
+
+  // returns the number of tiles and bytes of a layer
+  public static long[] getLayerStats(SQLiteDatabase database, int layerIndex) {
+
+    return getStats(database, SQL_GET_LAYER, new String[] { String.valueOf(layerIndex) });
+  }
+
+  // returns the number of bytes of each layer that may be evicted (those of all but the imported tiles) by layer index
+  public static long[] getEvictableBytes(SQLiteDatabase database, int layerCount) {
+
+    long[] layerBytes = new long[layerCount];
+
+    Cursor cursor = database.rawQuery(SQL_GET_EVICTABLE_BYTES, new String[] {});
+
+    try {
+      while (cursor.moveToNext()) {
+        int layerIndex = cursor.getInt(0);
+        if (layerIndex >= 0 && layerIndex < layerCount) {
+          layerBytes[layerIndex] = cursor.getLong(1);
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+
+    return layerBytes;
+  }
+
+  private static long[] getStats(SQLiteDatabase database, String query, String[] args) {
+
+    Cursor cursor = database.rawQuery(query, args);
+
+    try {
+      if (cursor.moveToFirst()) {
+        return new long[] { cursor.getLong(0), cursor.getLong(1) };
+      }
+    } finally {
+      cursor.close();
+    }
+
+    return new long[] { 0, 0 };
+  }
+}
@@ -0,0 +1,96 @@
+package ch.trillian.dufour;
+
+// a set of longs in an open addressing hash table with linear probing (see TileMap), growing when half full
+public class LongSet {
+
+  // the keys by slot, 0 marks an empty slot so a key 0 is kept aside
+  private long[] keys;
+  private int mask;
+  private int size;
+  private boolean hasZero;
+
+  public LongSet(int capacity) {
+
+    int tableSize = Integer.highestOneBit(2 * Math.max(1, capacity) - 1) << 1;
+    keys = new long[tableSize];
+    mask = tableSize - 1;
+  }
+
+  public int size() {
+
+    return size;
+  }
+
+  // adds a key, returns false if it's in the set already
+  public boolean add(long key) {
+
+    if (key == 0) {
+      if (hasZero) {
+        return false;
+      }
+      hasZero = true;
+      size++;
+      return true;
+    }
+
+    int slot = getSlot(key);
+    while (keys[slot] != 0) {
+      if (keys[slot] == key) {
+        return false;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    keys[slot] = key;
+    size++;
+
+    if (2 * size > keys.length) {
+      grow();
+    }
+
+    return true;
+  }
+
+  // copies all keys to the start of an array of at least size() elements and empties the set, returns the number of keys
+  public int drainTo(long[] array) {
+
+    int count = 0;
+
+    if (hasZero) {
+      array[count++] = 0;
+      hasZero = false;
+    }
+
+    for (int i = 0; i < keys.length; i++) {
+      if (keys[i] != 0) {
+        array[count++] = keys[i];
+        keys[i] = 0;
+      }
+    }
+    size = 0;
+
+    return count;
+  }
+
+  private void grow() {
+
+    long[] oldKeys = keys;
+    keys = new long[2 * oldKeys.length];
+    mask = keys.length - 1;
+
+    for (long key : oldKeys) {
+      if (key != 0) {
+        int slot = getSlot(key);
+        while (keys[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+      }
+    }
+  }
+
+  private int getSlot(long key) {
+
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+  }
+}
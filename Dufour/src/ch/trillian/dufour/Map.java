@@ -36,6 +36,55 @@ public class Map {
     return layers[layerIndex];
   }
   
+  // divides maxBytes among the layers and returns the number of bytes each layer is over it's quota: pinned layers keep
+  // all their tiles outside of maxBytes (see MapActivity), the others share
+  // maxBytes with layers using less than their share leaving the rest to the others
+  public long[] getBytesOverQuota(long[] layerBytes, long maxBytes) {
+    
+    long[] bytesOverQuota = new long[layers.length];
+    long available = maxBytes;
+    int unpinnedCount = 0;
+    
+    for (int i = 0; i < layers.length; i++) {
+      if (!layers[i].isPinned()) {
+        unpinnedCount++;
+      }
+    }
+    
+    // hand out the shares smallest layer first
+    boolean[] done = new boolean[layers.length];
+    for (int n = unpinnedCount; n > 0; n--) {
+      
+      int smallest = -1;
+      for (int i = 0; i < layers.length; i++) {
+        if (!layers[i].isPinned() && !done[i] && (smallest < 0 || layerBytes[i] < layerBytes[smallest])) {
+          smallest = i;
+        }
+      }
+      
+      long quota = Math.min(layerBytes[smallest], Math.max(0, available) / n);
+      bytesOverQuota[smallest] = layerBytes[smallest] - quota;
+      available -= quota;
+      done[smallest] = true;
+    }
+    
+    return bytesOverQuota;
+  }
+  
+  // returns the number of bytes of the layers that aren't pinned, which are the ones sharing maxBytes (see above)
+  public long getUnpinnedBytes(long[] layerBytes) {
+    
+    long unpinnedBytes = 0;
+    
+    for (int i = 0; i < layers.length; i++) {
+      if (!layers[i].isPinned()) {
+        unpinnedBytes += layerBytes[i];
+      }
+    }
+    
+    return unpinnedBytes;
+  }
+  
   public String getName() {
     return name;
   }
@@ -5,12 +5,17 @@ import java.util.TimerTask;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.SearchManager;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
+import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
@@ -44,6 +49,7 @@ public class MapActivity extends Activity {
   private MapView mapView;
   private TileCache tileCache;
   private TileLoader tileLoader;
+  private BitmapCache bitmapCache;
 
   // true if GPS is enabled
   boolean gpsWasEnabled;
@@ -66,9 +72,13 @@ public class MapActivity extends Activity {
     Log.i("TRILLIAN", "onCreate()");
 
     // initialize loader
-    tileLoader = new TileLoader(this);
+    tileLoader = new TileLoader(this, map);
     tileLoader.setLoadListener(new LoadListener());
 
+    // keep recently displayed tiles of all layers in up to a quarter of our heap
+    int memoryClass = ((ActivityManager) getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
+    bitmapCache = new BitmapCache(memoryClass * 1024L * 1024 / 4, tileLoader.getBitmapPool());
+
     // initialize view
     setContentView(R.layout.activity_map);
     mapView = (MapView) findViewById(R.id.map_view);
@@ -113,6 +123,8 @@ public class MapActivity extends Activity {
 
     tileLoader.onResume();
 
+    registerReceiver(networkReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+
     startTimer();
 
     setGpsEnabled(gpsWasEnabled);
@@ -130,6 +142,8 @@ public class MapActivity extends Activity {
     gpsWasTracking = mapView.isGpsTracking();
     setGpsEnabled(false);
 
+    unregisterReceiver(networkReceiver);
+
     tileLoader.onPause();
 
     Log.w("TRILLIAN", "onStop() gpsWasEnabled=" + gpsWasEnabled);
@@ -160,6 +174,17 @@ public class MapActivity extends Activity {
     super.onDestroy();
   }
 
+  @Override
+  public void onTrimMemory(int level) {
+
+    super.onTrimMemory(level);
+
+    // the tiles of other layers aren't worth keeping while we're not visible
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+      bitmapCache.evictAll();
+    }
+  }
+
   @Override
   public boolean onCreateOptionsMenu(Menu menu) {
 
@@ -300,6 +325,11 @@ public class MapActivity extends Activity {
     //new Layer("CH26", "26",  urlFormat, 420000f, 350000f, 0.5f, 256, 256, 0, 0, 3749, 2499),
     };
 
+    // the overview layers CH16 to CH18 are small and needed for finding the way when offline
+    for (int i = 0; i < 3; i++) {
+      layers[i].setPinned(true);
+    }
+
     return new Map("CH", layers, 0.5f, 10.0f, 1.5f, 1.5f);
   }
 
@@ -314,8 +344,17 @@ public class MapActivity extends Activity {
 
       Log.w("TRILLIAN", "onSizeChanged: " + (tileCache == null ? "no old cache" : "has old cache"));
 
+      // keep the tiles we have (e.g. when rotating, we handle orientation changes ourselves)
+      if (tileCache != null) {
+        tileCache.setScreenSize(w, h);
+        return;
+      }
+      
       tileCache = new TileCache(map, TileCache.PRELOAD_SIZE, w, h);
       tileCache.setCacheListener(new CacheListener());
+      tileCache.setBitmapPool(tileLoader.getBitmapPool());
+      tileCache.setBitmapCache(bitmapCache);
+      tileCache.setMissingTiles(tileLoader.getMissingTiles());
     }
 
     @Override
@@ -328,9 +367,22 @@ public class MapActivity extends Activity {
       return tileCache.getTile(layer, x, y);
     }
 
+    @Override
+    public Tile onPeekTile(Layer layer, int x, int y) {
+
+      if (tileCache == null) {
+        return null;
+      }
+
+      return tileCache.peekTile(layer, x, y);
+    }
+
     @Override
     public void preloadRegion(Layer layer, int minTileX, int maxTileX, int minTileY, int maxTileY) {
 
+      // load tiles closest to the center of the new region first
+      tileLoader.setRegion(layer, minTileX, maxTileX, minTileY, maxTileY);
+
       if (tileCache != null) {
         tileCache.preloadRegion(layer, minTileX, maxTileX, minTileY, maxTileY);
       }
@@ -351,6 +403,15 @@ public class MapActivity extends Activity {
         mapView.invalidate();
       }
     }
+
+    @Override
+    public void onConnectivityRestored() {
+
+      if (tileCache != null) {
+        tileCache.reloadFailedTiles();
+        mapView.invalidate();
+      }
+    }
   }
 
   private class CacheListener implements TileCache.CacheListener {
@@ -435,6 +496,17 @@ public class MapActivity extends Activity {
     }
   };
 
+  private final BroadcastReceiver networkReceiver = new BroadcastReceiver() {
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+
+      if (!intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
+        tileLoader.onNetworkAvailable();
+      }
+    }
+  };
+
   private Timer timer;
 
   private final void startTimer() {
@@ -1,54 +1,90 @@
 package ch.trillian.dufour;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.util.Log;
 
-public class MapDatabase extends SQLiteOpenHelper {
+public class MapDatabase extends SQLiteOpenHelper implements TileStore {
 
   private static final String TAG = "DATABASE";
 
   private static final String DATABASE_NAME = "map.db";
-  private static final int DATABASE_VERSION = 1;
+  private static final int DATABASE_VERSION = 7;
+
+  // the number of tiles imported or exported in a single transaction
+  private static final int TRANSFER_BATCH_SIZE = 500;
+
+  // the value of PRAGMA auto_vacuum for incremental vacuum
+  private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+  // the maximum number of free pages returned to the file system by a single compaction step
+  private static final int VACUUM_PAGES = 256;
 
   // Our singleton
   private static MapDatabase instance;
   
-  // our database
-  private SQLiteDatabase db;
+  // our database, in write-ahead logging mode reads run on their own connections and never wait for writes
+  private volatile SQLiteDatabase db;
   
   // the number of open 'connections'
   private int openCount = 0;
   
-  // the current number of tiles
-  private int tileCount;
+  // whether the database uses incremental vacuum and whether switching a database of an older version has failed
+  private boolean incrementalVacuum;
+  private boolean vacuumSwitchFailed;
+  
+  // the current number of tiles and bytes of all tile images (the sums of LAYER_STATS)
+  private volatile int tileCount;
+  private volatile long tileBytes;
   
-  private MapDatabase(Context context) {
+  // the statements used for writing, compiled once when opening and only used holding our lock
+  private SQLiteStatement insertImageStatement;
+  private SQLiteStatement insertTileStatement;
+  private SQLiteStatement getSizeStatement;
+  private SQLiteStatement updateBitmapStatement;
+  private SQLiteStatement updateLastUsedStatement;
+  private SQLiteStatement deleteTileStatement;
+  
+  // the map whose tiles we store
+  private final Map map;
+  
+  private MapDatabase(Context context, Map map) {
     
     super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    
+    this.map = map;
   }
 
   @Override
   public void onCreate(SQLiteDatabase database) {
     
     TileTable.onCreate(database);
+    ImageTable.onCreate(database);
+    LayerStatsTable.onCreate(database);
   }
 
   @Override
   public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
     
-    TileTable.onUpgrade(database, oldVersion, newVersion);
+    TileTable.onUpgrade(database, oldVersion, newVersion, map);
+    LayerStatsTable.onUpgrade(database, oldVersion, newVersion);
   }
   
-  public static MapDatabase newInstance(Context context) {
+  public static MapDatabase newInstance(Context context, Map map) {
     
     if (instance == null) {
-      instance = new MapDatabase(context);
+      instance = new MapDatabase(context, map);
     }
       
     return instance;
@@ -59,14 +95,27 @@ public class MapDatabase extends SQLiteOpenHelper {
     return instance;
   }
   
+  @Override
   public synchronized void openDatabase() {
     
     long start = System.currentTimeMillis();
 
     if (openCount == 0) {
       db = getWritableDatabase();
-      tileCount = readTileCount();
-      Log.i(TAG, String.format("Opened (tileCount=%d)", tileCount));
+      incrementalVacuum = DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) == AUTO_VACUUM_INCREMENTAL;
+      if (!db.enableWriteAheadLogging()) {
+        Log.w(TAG, "Write-ahead logging not available");
+      }
+      insertImageStatement = db.compileStatement(ImageTable.SQL_INSERT_IMAGE);
+      insertTileStatement = db.compileStatement(SQL_INSERT_TILE);
+      getSizeStatement = db.compileStatement(SQL_GET_SIZE);
+      updateBitmapStatement = db.compileStatement(SQL_UPDATE_BITMAP);
+      updateLastUsedStatement = db.compileStatement(SQL_UPDATE_LAST_USED);
+      deleteTileStatement = db.compileStatement(SQL_DELETE_TILE);
+      long[] totals = LayerStatsTable.getTotals(db);
+      tileCount = (int) totals[0];
+      tileBytes = totals[1];
+      Log.i(TAG, String.format("Opened (tileCount=%d, tileBytes=%d)", tileCount, tileBytes));
     }
 
     openCount++;
@@ -74,6 +123,7 @@ public class MapDatabase extends SQLiteOpenHelper {
     Log.i(TAG, String.format("Opened in %d ms (openCount=%d)", (System.currentTimeMillis() - start), openCount));
   }
 
+  @Override
   public synchronized void closeDatabase() {
 
     long start = System.currentTimeMillis();
@@ -81,6 +131,12 @@ public class MapDatabase extends SQLiteOpenHelper {
     openCount--;
 
     if (openCount == 0) {
+      insertImageStatement.close();
+      insertTileStatement.close();
+      getSizeStatement.close();
+      updateBitmapStatement.close();
+      updateLastUsedStatement.close();
+      deleteTileStatement.close();
       db.close();
       db = null;
     }
@@ -88,144 +144,477 @@ public class MapDatabase extends SQLiteOpenHelper {
     Log.i(TAG, String.format("Closed in %d ms (openCount=%d)", (System.currentTimeMillis() - start), openCount));
   }
 
+  @Override
   public int getTileCount() {
     
     return tileCount;
   }
   
-  private static final String SQL_GET_TILE_COUNT = "SELECT COUNT(*) FROM " + TileTable.TABLE_NAME;
-
-  public int readTileCount() {
+  @Override
+  public long getTileBytes() {
     
-    Cursor cursor = db.rawQuery(SQL_GET_TILE_COUNT, new String[] {});
+    return tileBytes;
+  }
+  
+  // the number of tiles of a layer, read from LAYER_STATS without scanning the tiles
+  public int readTileCount(Layer layer) {
     
-    if (cursor == null) {
-      return -1;
-      
-    }
+    return (int) LayerStatsTable.getLayerStats(db, layer.getIndex())[0];
+  }
+  
+  public long readTileBytes(Layer layer) {
+    
+    return LayerStatsTable.getLayerStats(db, layer.getIndex())[1];
+  }
+  
+  private static final String SQL_GET_TILE_IMAGES = "SELECT " + TileTable.COL_KEY + ", " + TileTable.COL_LAST_USED + ", " + ImageTable.COL_HASH + ", " + ImageTable.COL_IMAGE + " FROM " + TileTable.TABLE_NAME + " JOIN " + ImageTable.TABLE_NAME + " USING (" + ImageTable.COL_HASH + ") WHERE " + TileTable.COL_KEY + " IN (";
+
+  // the queries for reading a number of tiles at once by the number of tiles
+  private final HashMap<Integer, String> readTileImagesQueries = new HashMap<Integer, String>();
 
+  // reads the encoded images and last used times of a number of tiles in a single query, every tile found is
+  // passed to the listener as soon as it has been read (doesn't take our lock, so it never waits for writes)
+  @Override
+  public void readTileImages(List<Tile> tiles, TileImageListener listener) {
+
+    // the queries are reused by SQLite's per-connection statement cache
+    String query;
+    synchronized (readTileImagesQueries) {
+      query = readTileImagesQueries.get(tiles.size());
+      if (query == null) {
+        StringBuilder builder = new StringBuilder(SQL_GET_TILE_IMAGES);
+        for (int i = 0; i < tiles.size(); i++) {
+          builder.append(i == 0 ? "?" : ",?");
+        }
+        query = builder.append(")").toString();
+        readTileImagesQueries.put(tiles.size(), query);
+      }
+    }
+    
+    String[] args = new String[tiles.size()];
+    HashMap<Long, Tile> tilesByKey = new HashMap<Long, Tile>(2 * tiles.size());
+    for (int i = 0; i < tiles.size(); i++) {
+      Tile tile = tiles.get(i);
+      args[i] = String.valueOf(tile.getKey());
+      tilesByKey.put(tile.getKey(), tile);
+    }
+    
+    Cursor cursor = db.rawQuery(query, args);
+    
     try {
-      if(cursor.moveToFirst()) {
-        return cursor.getInt(0);
+      while (cursor.moveToNext()) {
+        Tile tile = tilesByKey.get(cursor.getLong(0));
+        if (tile != null) {
+          tile.setLastUsed(cursor.getLong(1));
+          listener.onTileImage(tile, cursor.getLong(2), ByteBuffer.wrap(cursor.getBlob(3)));
+        }
       }
     } finally {
       cursor.close();
     }
-
-    return -1;
   }
-  
-  private static final String SQL_GET_TILE_IMAGE = "SELECT " + TileTable.COL_LAST_USED + ", " + TileTable.COL_IMAGE + " FROM " + TileTable.TABLE_NAME + " WHERE " + TileTable.COL_LAYER_ID + " = ? AND " + TileTable.COL_X + " = ? AND " + TileTable.COL_Y + "=?";
 
-  public synchronized boolean readTile(Tile tile) {
+  private static final String SQL_UPDATE_LAST_USED = "UPDATE " + TileTable.TABLE_NAME + " SET " + TileTable.COL_LAST_USED + "=? WHERE " + TileTable.COL_KEY + "=?";
+  
+  // sets the last used time of the first count tiles in keys in a single transaction
+  @Override
+  public synchronized void updateLastUsed(long[] keys, int count, long lastUsed) {
+    
+    long start = System.currentTimeMillis();
 
-    Cursor cursor = db.rawQuery(SQL_GET_TILE_IMAGE, new String[] { tile.getLayer().getName(), String.valueOf(tile.getX()), String.valueOf(tile.getY())});
+    db.beginTransaction();
     
     try {
-      if(cursor.moveToFirst()) {
-        
-        tile.setLastUsed(cursor.getLong(0));
-        byte[] encodedImage = cursor.getBlob(1);
-        Bitmap bitmap = BitmapFactory.decodeByteArray(encodedImage, 0, encodedImage.length);
-        if (bitmap != null) {
-          tile.setBitmap(bitmap);
-          return true;
-        }
-        
+      
+      for (int i = 0; i < count; i++) {
+        updateLastUsedStatement.clearBindings();
+        updateLastUsedStatement.bindLong(1, lastUsed);
+        updateLastUsedStatement.bindLong(2, keys[i]);
+        updateLastUsedStatement.executeUpdateDelete();
       }
+      
+      db.setTransactionSuccessful();
+      
     } finally {
-      cursor.close();
+      db.endTransaction();
     }
-
-    return false;
+    
+    Log.i(TAG, String.format("Updated last-used of %d rows in %d ms", count, (System.currentTimeMillis() - start)));
   }
+  
+  private static final String SQL_INSERT_TILE = "INSERT OR IGNORE INTO " + TileTable.TABLE_NAME + " (" + TileTable.COL_KEY + "," + TileTable.COL_LAST_USED + "," + TileTable.COL_IMAGE_HASH + "," + TileTable.COL_SIZE + "," + TileTable.COL_IMPORTED + ") VALUES(?,?,?,?,?)";
+  private static final String SQL_GET_SIZE = "SELECT " + TileTable.COL_SIZE + " FROM " + TileTable.TABLE_NAME + " WHERE " + TileTable.COL_KEY + "=?";
+  private static final String SQL_UPDATE_BITMAP = "UPDATE " + TileTable.TABLE_NAME + " SET " + TileTable.COL_LAST_USED + "=?," + TileTable.COL_IMAGE_HASH + "=?," + TileTable.COL_SIZE + "=?," + TileTable.COL_IMPORTED + "=MAX(" + TileTable.COL_IMPORTED + ",?) WHERE " + TileTable.COL_KEY + "=?";
 
-  private static final String SQL_EXISTS_TILE = "SELECT 1 FROM " + TileTable.TABLE_NAME + " WHERE " + TileTable.COL_LAYER_ID + " = ? AND " + TileTable.COL_X + " = ? AND " + TileTable.COL_Y + "=?";
-
-  public boolean isTileExisting(Tile tile) {
+  // inserts or replaces a number of tiles in a single transaction, if the images exceed maxBytes afterwards 
+  // the least recently used tiles are deleted until they fit into minBytes
+  @Override
+  public synchronized void writeTiles(List<Tile> tiles, List<byte[]> images, long[] hashes, long minBytes, long maxBytes) {
+    
+    long start = System.currentTimeMillis();
 
-    Cursor cursor = db.rawQuery(SQL_EXISTS_TILE, new String[] { tile.getLayer().getName(), String.valueOf(tile.getX()), String.valueOf(tile.getY())});
- 
+    int oldTileCount = tileCount;
+    long oldTileBytes = tileBytes;
+    boolean success = false;
+    
+    db.beginTransaction();
+    
     try {
-      if(cursor.moveToFirst()) {
-        return true;
+      
+      for (int i = 0; i < tiles.size(); i++) {
+        putTile(tiles.get(i).getKey(), tiles.get(i).getLastUsed(), hashes[i], images.get(i), false);
       }
+      
+      // neither pinned layers nor imported tiles count, else they would have every write evict the other tiles
+      long[] layerBytes = LayerStatsTable.getEvictableBytes(db, map.getLayerCount());
+      if (map.getUnpinnedBytes(layerBytes) > maxBytes) {
+        deleteOverQuota(layerBytes, minBytes);
+      }
+      
+      db.setTransactionSuccessful();
+      success = true;
+      
     } finally {
-      cursor.close();
+      db.endTransaction();
+      if (!success) {
+        tileCount = oldTileCount;
+        tileBytes = oldTileBytes;
+      }
     }
-
-    return false;
+    
+    Log.i(TAG, String.format("Wrote %d rows in %d ms (tileCount=%d, tileBytes=%d)", tiles.size(), (System.currentTimeMillis() - start), tileCount, tileBytes));
   }
-
-  private static final String SQL_UPDATE_LAST_USED = "UPDATE " + TileTable.TABLE_NAME + " SET " + TileTable.COL_LAST_USED + "=? WHERE " + TileTable.COL_LAYER_ID + " = ? AND " + TileTable.COL_X + " = ? AND " + TileTable.COL_Y + "=?";
   
-  public synchronized void updateLastUsed(Tile tile) {
+  // inserts a tile or replaces it's image, the image itself is only stored if no other tile has the same
+  // image already; a tile stays imported once it has been (must be called inside a transaction)
+  private void putTile(long key, long lastUsed, long hash, byte[] image, boolean imported) {
+    
+    insertImageStatement.clearBindings();
+    insertImageStatement.bindLong(1, hash);
+    insertImageStatement.bindBlob(2, image);
+    insertImageStatement.executeInsert();
+    
+    insertTileStatement.clearBindings();
+    insertTileStatement.bindLong(1, key);
+    insertTileStatement.bindLong(2, lastUsed);
+    insertTileStatement.bindLong(3, hash);
+    insertTileStatement.bindLong(4, image.length);
+    insertTileStatement.bindLong(5, imported ? 1 : 0);
+    if (insertTileStatement.executeInsert() >= 0) {
+      tileCount++;
+      tileBytes += image.length;
+      return;
+    }
+    
+    // tile exists already, replace it's image
+    getSizeStatement.bindLong(1, key);
+    tileBytes -= getSizeStatement.simpleQueryForLong();
+    updateBitmapStatement.clearBindings();
+    updateBitmapStatement.bindLong(1, lastUsed);
+    updateBitmapStatement.bindLong(2, hash);
+    updateBitmapStatement.bindLong(3, image.length);
+    updateBitmapStatement.bindLong(4, imported ? 1 : 0);
+    updateBitmapStatement.bindLong(5, key);
+    updateBitmapStatement.executeUpdateDelete();
+    tileBytes += image.length;
+  }
+  
+  // imports the tiles of an MBTiles package (see MbTilesTable), tiles not matching a layer of our map are skipped;
+  // the package is read in pages of TRANSFER_BATCH_SIZE tiles along it's tile index, each written in a transaction
+  // of it's own, our lock is only held for each transaction so downloads go on being stored while importing; the
+  // imported tiles are marked (see TileTable.COL_IMPORTED) so they are neither evicted nor counted against the cache
+  // size (opens the database itself, so it may be called whether the loaders have it open or not)
+  public int importTiles(File file) {
     
     long start = System.currentTimeMillis();
-
-    SQLiteStatement updateLastUsedStatement = db.compileStatement(SQL_UPDATE_LAST_USED);
-    updateLastUsedStatement.clearBindings();
-    updateLastUsedStatement.bindLong(1, tile.getLastUsed());
-    updateLastUsedStatement.bindString(2, tile.getLayer().getName());
-    updateLastUsedStatement.bindLong(3, tile.getX());
-    updateLastUsedStatement.bindLong(4, tile.getY());
-    updateLastUsedStatement.executeUpdateDelete();
+    long now = System.currentTimeMillis();
+    int imported = 0;
+    int skipped = 0;
+    
+    SQLiteDatabase source = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+    openDatabase();
     
-    Log.i(TAG, String.format("Updated last-used in %d ms", (System.currentTimeMillis() - start)));
+    try {
+      
+      // the last tile read, the next page starts after it
+      String lastZoomLevel = "-1";
+      String lastColumn = "-1";
+      String lastRow = "-1";
+      int rows = TRANSFER_BATCH_SIZE;
+      
+      while (rows == TRANSFER_BATCH_SIZE) {
+        
+        rows = 0;
+        Cursor cursor = source.rawQuery(MbTilesTable.SQL_GET_TILES_AFTER, new String[] { lastZoomLevel, lastColumn, lastRow, lastZoomLevel, lastColumn, lastZoomLevel, String.valueOf(TRANSFER_BATCH_SIZE) });
+        
+        try {
+          
+          synchronized (this) {
+            
+            int oldTileCount = tileCount;
+            long oldTileBytes = tileBytes;
+            int batchImported = 0;
+            boolean success = false;
+            
+            db.beginTransaction();
+            
+            try {
+              
+              while (cursor.moveToNext()) {
+                
+                rows++;
+                lastZoomLevel = cursor.getString(0);
+                lastColumn = cursor.getString(1);
+                lastRow = cursor.getString(2);
+                
+                Layer layer = MbTilesTable.getLayer(map, cursor.getInt(0));
+                if (layer == null) {
+                  skipped++;
+                  continue;
+                }
+                
+                int x = MbTilesTable.getX(layer, cursor.getInt(1));
+                int y = MbTilesTable.getY(layer, cursor.getInt(2));
+                if (!layer.hasTile(x, y)) {
+                  skipped++;
+                  continue;
+                }
+                
+                byte[] image = cursor.getBlob(3);
+                putTile(Tile.getKey(layer, x, y), now, ImageTable.getHash(image), image, true);
+                batchImported++;
+              }
+              
+              db.setTransactionSuccessful();
+              success = true;
+              
+            } finally {
+              db.endTransaction();
+              if (!success) {
+                tileCount = oldTileCount;
+                tileBytes = oldTileBytes;
+              }
+            }
+            
+            imported += batchImported;
+          }
+          
+        } finally {
+          cursor.close();
+        }
+      }
+      
+    } finally {
+      closeDatabase();
+      source.close();
+    }
+    
+    Log.i(TAG, String.format("Imported %d tiles (skipped %d) in %d ms (tileCount=%d, tileBytes=%d)", imported, skipped, (System.currentTimeMillis() - start), tileCount, tileBytes));
+    
+    return imported;
   }
   
-  private static final String SQL_UPDATE_BITMAP = "UPDATE " + TileTable.TABLE_NAME + " SET " + TileTable.COL_LAST_USED + "=?," + TileTable.COL_IMAGE + "=? WHERE " + TileTable.COL_LAYER_ID + " = ? AND " + TileTable.COL_X + " = ? AND " + TileTable.COL_Y + "=?";
-
-  public synchronized void updateBitmap(Tile tile, byte[] image) {
+  private static final String SQL_GET_TILES_AFTER = "SELECT " + TileTable.COL_KEY + ", " + ImageTable.COL_IMAGE + " FROM " + TileTable.TABLE_NAME + " JOIN " + ImageTable.TABLE_NAME + " USING (" + ImageTable.COL_HASH + ") WHERE " + TileTable.COL_KEY + " > ? ORDER BY " + TileTable.COL_KEY + " LIMIT " + TRANSFER_BATCH_SIZE;
+  
+  // exports all tiles into a new MBTiles package (see MbTilesTable), reading them by key in batches of TRANSFER_BATCH_SIZE
+  // tiles (doesn't take our lock, so downloads go on being stored while exporting; opens the database itself like
+  // importTiles())
+  public int exportTiles(File file) {
     
     long start = System.currentTimeMillis();
+    int exported = 0;
+    String format = null;
     
-    SQLiteStatement statement = db.compileStatement(SQL_UPDATE_BITMAP);
-    statement.clearBindings();
-    statement.bindLong(1, tile.getLastUsed());
-    statement.bindBlob(2, image);
-    statement.bindString(3, tile.getLayer().getName());
-    statement.bindLong(4, tile.getX());
-    statement.bindLong(5, tile.getY());
-    statement.executeUpdateDelete();
-
-    Log.i(TAG, String.format("Updated bitmap in %d ms", (System.currentTimeMillis() - start)));
+    if (file.exists() && !file.delete()) {
+      throw new IllegalStateException("Can't replace " + file);
+    }
+    
+    SQLiteDatabase target = SQLiteDatabase.openOrCreateDatabase(file, null);
+    openDatabase();
+    
+    try {
+      
+      MbTilesTable.onCreate(target);
+      SQLiteStatement insertStatement = target.compileStatement(MbTilesTable.SQL_INSERT_TILE);
+      
+      long lastKey = -1;
+      int rows = TRANSFER_BATCH_SIZE;
+      
+      while (rows == TRANSFER_BATCH_SIZE) {
+        
+        rows = 0;
+        Cursor cursor = db.rawQuery(SQL_GET_TILES_AFTER, new String[] { String.valueOf(lastKey) });
+        target.beginTransaction();
+        
+        try {
+          
+          while (cursor.moveToNext()) {
+            
+            lastKey = cursor.getLong(0);
+            rows++;
+            
+            int layerIndex = Tile.getKeyLayerIndex(lastKey);
+            if (layerIndex >= map.getLayerCount()) {
+              continue;
+            }
+            
+            Layer layer = map.getLayer(layerIndex);
+            byte[] image = cursor.getBlob(1);
+            if (format == null) {
+              format = MbTilesTable.getFormat(image);
+            }
+            
+            insertStatement.clearBindings();
+            insertStatement.bindLong(1, MbTilesTable.getZoomLevel(layer));
+            insertStatement.bindLong(2, MbTilesTable.getColumn(layer, Tile.getKeyX(lastKey)));
+            insertStatement.bindLong(3, MbTilesTable.getRow(layer, Tile.getKeyY(lastKey)));
+            insertStatement.bindBlob(4, image);
+            insertStatement.executeInsert();
+            exported++;
+          }
+          
+          target.setTransactionSuccessful();
+          
+        } finally {
+          target.endTransaction();
+          cursor.close();
+        }
+      }
+      
+      insertStatement.close();
+      
+      MbTilesTable.setMetadata(target, "name", map.getName());
+      MbTilesTable.setMetadata(target, "type", "baselayer");
+      MbTilesTable.setMetadata(target, "version", "1");
+      MbTilesTable.setMetadata(target, "format", format != null ? format : "png");
+      
+    } finally {
+      closeDatabase();
+      target.close();
+    }
+    
+    Log.i(TAG, String.format("Exported %d tiles in %d ms", exported, (System.currentTimeMillis() - start)));
+    
+    return exported;
   }
   
-  private static final String SQL_INSERT_TILE = "INSERT INTO " + TileTable.TABLE_NAME + " (" + TileTable.COL_LAYER_ID + "," + TileTable.COL_X + "," + TileTable.COL_Y + "," + TileTable.COL_LAST_USED + "," + TileTable.COL_IMAGE + ") VALUES(?,?,?,?,?)";
-
-  public synchronized void insertTile(Tile tile, byte[] image) {
+  // returns up to VACUUM_PAGES free pages to the file system, so each step only holds our lock for a short time
+  @Override
+  public synchronized long compact() {
+    
+    if (!incrementalVacuum) {
+      return switchToIncrementalVacuum();
+    }
     
     long start = System.currentTimeMillis();
 
-    SQLiteStatement statement = db.compileStatement(SQL_INSERT_TILE);
-    statement.clearBindings();
-    statement.bindString(1, tile.getLayer().getName());
-    statement.bindLong(2, tile.getX());
-    statement.bindLong(3, tile.getY());
-    statement.bindLong(4, tile.getLastUsed());
-    statement.bindBlob(5, image);
-    if (statement.executeInsert() >= 0) {
-      tileCount++;
+    long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+    if (freePages == 0) {
+      return 0;
+    }
+    
+    // the cursor must be read to the end, some versions of SQLite free a single page per step
+    Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")", null);
+    try {
+      while (cursor.moveToNext()) {
+      }
+    } finally {
+      cursor.close();
     }
     
-    Log.i(TAG, String.format("Inserted row in %d ms (tileCount=%d)", (System.currentTimeMillis() - start), tileCount));
+    long freePagesLeft = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+    long bytes = (freePages - freePagesLeft) * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    
+    Log.i(TAG, String.format("Reclaimed %d bytes in %d ms (%d free pages left)", bytes, (System.currentTimeMillis() - start), freePagesLeft));
+    
+    return bytes;
   }
   
-  private static final String SQL_DELETE_LEAST_RECENTLY_USED = "DELETE FROM " + TileTable.TABLE_NAME + " WHERE ROWID IN (SELECT ROWID FROM " + TileTable.TABLE_NAME + " ORDER BY " + TileTable.COL_LAST_USED + " ASC LIMIT ?)";
+  // auto_vacuum can't be set in onCreate() since android_metadata has been created by then, so every database
+  // (a new one just as one of an older version) needs a full vacuum once to switch, run as a compaction step
+  // of it's own while idle and only if there's room for a copy of the database, returns the number of bytes reclaimed
+  private long switchToIncrementalVacuum() {
+    
+    if (vacuumSwitchFailed) {
+      return 0;
+    }
+    
+    long start = System.currentTimeMillis();
+    
+    File file = new File(db.getPath());
+    long size = file.length();
+    if (file.getParentFile().getUsableSpace() < 2 * size) {
+      Log.w(TAG, String.format("Not enough space to switch to incremental vacuum (size=%d)", size));
+      vacuumSwitchFailed = true;
+      return 0;
+    }
+    
+    try {
+      db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+      db.execSQL("VACUUM");
+    } catch (SQLiteException e) {
+      Log.w(TAG, "Switching to incremental vacuum failed: " + e.getMessage(), e);
+      vacuumSwitchFailed = true;
+      return 0;
+    }
+    
+    incrementalVacuum = DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) == AUTO_VACUUM_INCREMENTAL;
+    vacuumSwitchFailed = !incrementalVacuum;
+    
+    Log.i(TAG, String.format("Switched to incremental vacuum in %d ms", (System.currentTimeMillis() - start)));
+    
+    // the file shrinks once the log has been checkpointed, but there's something to report either way
+    return Math.max(1, size - file.length());
+  }
+  
+  // deletes tiles of the layers over their quota (see Map.getBytesOverQuota()) until the tiles fit into maxBytes
+  // if possible (must be called inside a transaction)
+  private void deleteOverQuota(long[] layerBytes, long maxBytes) {
+    
+    long[] bytesOverQuota = map.getBytesOverQuota(layerBytes, maxBytes);
+    
+    for (int i = 0; i < bytesOverQuota.length; i++) {
+      if (bytesOverQuota[i] > 0) {
+        deleteLeastRecentlyUsed(map.getLayer(i), bytesOverQuota[i]);
+      }
+    }
+  }
+  
+  private static final String SQL_GET_LEAST_RECENTLY_USED = "SELECT " + TileTable.COL_KEY + ", " + TileTable.COL_SIZE + " FROM " + TileTable.TABLE_NAME + " WHERE " + TileTable.COL_KEY + " >= ? AND " + TileTable.COL_KEY + " < ? AND " + TileTable.COL_IMPORTED + " = 0 ORDER BY " + TileTable.COL_LAST_USED + " ASC";
+  private static final String SQL_DELETE_TILE = "DELETE FROM " + TileTable.TABLE_NAME + " WHERE " + TileTable.COL_KEY + "=?";
 
-  public synchronized void deleteLeastRecentlyUsed(int numberToDelete) {
+  // deletes the least recently used tiles of a layer which haven't been imported until at least bytesToDelete bytes have been freed
+  // (must be called inside a transaction)
+  private void deleteLeastRecentlyUsed(Layer layer, long bytesToDelete) {
     
     long start = System.currentTimeMillis();
     
-    SQLiteStatement statement = db.compileStatement(SQL_DELETE_LEAST_RECENTLY_USED);
-    statement.clearBindings();
-    statement.bindLong(1, numberToDelete);
-    int rowsDeleted = statement.executeUpdateDelete();
-    if (rowsDeleted > 0) {
-      tileCount -= rowsDeleted;
+    ArrayList<Long> keys = new ArrayList<Long>();
+    long bytesDeleted = 0;
+    
+    // the keys of a layer are a single range (see Tile.getKey())
+    String minKey = String.valueOf((long) layer.getIndex() << 48);
+    String maxKey = String.valueOf((long) (layer.getIndex() + 1) << 48);
+    Cursor cursor = db.rawQuery(SQL_GET_LEAST_RECENTLY_USED, new String[] { minKey, maxKey });
+    try {
+      while (bytesDeleted < bytesToDelete && cursor.moveToNext()) {
+        keys.add(cursor.getLong(0));
+        bytesDeleted += cursor.getLong(1);
+      }
+    } finally {
+      cursor.close();
+    }
+    
+    SQLiteStatement statement = deleteTileStatement;
+    int rowsDeleted = 0;
+    for (Long key : keys) {
+      statement.bindLong(1, key);
+      rowsDeleted += statement.executeUpdateDelete();
     }
+    
+    tileCount -= rowsDeleted;
+    tileBytes -= bytesDeleted;
 
-    Log.i(TAG, String.format("Deleted %d rows in %d ms (tileCount=%d)", rowsDeleted, (System.currentTimeMillis() - start), tileCount));
+    Log.i(TAG, String.format("Deleted %d rows of layer %s in %d ms (tileCount=%d, tileBytes=%d)", rowsDeleted, layer.getName(), (System.currentTimeMillis() - start), tileCount, tileBytes));
   }
 }
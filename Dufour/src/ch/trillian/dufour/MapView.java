@@ -7,6 +7,8 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.location.Location;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -25,6 +27,9 @@ public class MapView extends View {
 
     public Tile onGetTile(Layer layer, int x, int y);
     
+    // returns a tile if it's in memory without ordering it
+    public Tile onPeekTile(Layer layer, int x, int y);
+    
     public void preloadRegion(Layer layer, int minTileX, int maxTileX, int minTileY, int maxTileY);
     
     // public void gpsIsTracking(boolean isTracking);
@@ -63,6 +68,7 @@ public class MapView extends View {
 
   // painters and paths
   private Paint mapPaint;
+  private Paint standInPaint;
   private Paint gpsPaint;
   private Paint poiPaint;
   private Paint infoPaint;
@@ -75,6 +81,10 @@ public class MapView extends View {
   private Bitmap tileLoadingBitmap;
   private Bitmap tileLoadFailedBitmap;
   
+  // the part of another layer's tile drawn in place of a loading tile
+  private final Rect standInSource = new Rect();
+  private final RectF standInTarget = new RectF();
+  
   // screen size in pixel
   private int screenSizeX;
   private int screenSizeY;
@@ -174,6 +184,9 @@ public class MapView extends View {
     mapPaint.setTextSize(mapGridTextSize);
     mapPaint.setTextAlign(Paint.Align.CENTER);
 
+    // filtered since stand-ins are scaled
+    standInPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
     gpsPaint = new Paint(0);
     gpsPaint.setStrokeWidth(gpsPosBorderStroke);
     
@@ -444,8 +457,12 @@ public class MapView extends View {
             if (bitmap != null) {
               canvas.drawBitmap(bitmap, x, y, mapPaint);
             } else {
-              bitmap = tile.isLoading() ? tileLoadingBitmap : tileLoadFailedBitmap;
-              canvas.drawBitmap(bitmap, x + (incX - bitmap.getWidth()) / 2, y + (incY - bitmap.getHeight()) / 2, mapPaint);
+              // the layer in or out stands in for a loading tile, else draw the placeholder
+              boolean standIn = tile.isLoading() && drawStandIn(canvas, i, j);
+              if (!standIn && !tile.isMissing()) {
+                bitmap = tile.isLoading() ? tileLoadingBitmap : tileLoadFailedBitmap;
+                canvas.drawBitmap(bitmap, x + (incX - bitmap.getWidth()) / 2, y + (incY - bitmap.getHeight()) / 2, mapPaint);
+              }
             }
           }
         }
@@ -460,9 +477,9 @@ public class MapView extends View {
     for(int i = minTileX; i <= maxTileX; i++) {
       y = minY + incY / 2;
       for(int j = minTileY; j <= maxTileY; j++) {
-        boolean hasTile = layer.hasTile(i, j);
+        boolean hasTile = layer.hasTile(i, j) && !isMissing(i, j);
         if (!hasTile || mapGridDrawCoordinates) {
-          String text = layer.hasTile(i, j) ? "(" + i + "," + j + ")" : mapGridNoDataText;
+          String text = hasTile ? "(" + i + "," + j + ")" : mapGridNoDataText;
           canvas.save();
           canvas.rotate(-45f, x, y);
           canvas.drawText(text, x, y + textVerticalOffset, mapPaint);
@@ -476,6 +493,99 @@ public class MapView extends View {
     canvas.restore();
   }
 
+  // returns true if the server is known not to have the tile
+  private boolean isMissing(int x, int y) {
+    
+    if (viewListener == null) {
+      return false;
+    }
+    
+    Tile tile = viewListener.onPeekTile(layer, x, y);
+    
+    return tile != null && tile.isMissing();
+  }
+  
+  // draws the scaled down tiles of the layer in or the scaled up tiles of the nearest layer out covering tile (x, y)
+  // if they are all in memory, returns false if there's no such layer
+  private boolean drawStandIn(Canvas canvas, int x, int y) {
+    
+    Layer layerIn = layer.getLayerIn();
+    if (layerIn != null && drawOtherLayer(canvas, layerIn, x, y)) {
+      return true;
+    }
+    
+    for (Layer ancestor = layer.getLayerOut(); ancestor != null; ancestor = ancestor.getLayerOut()) {
+      if (drawOtherLayer(canvas, ancestor, x, y)) {
+        return true;
+      }
+    }
+    
+    return false;
+  }
+  
+  // draws the tiles of another layer covering tile (x, y) if they are all in memory, returns false otherwise
+  private boolean drawOtherLayer(Canvas canvas, Layer other, int x, int y) {
+    
+    float incX = layer.getTileSizeX();
+    float incY = layer.getTileSizeY();
+    
+    // the tile's rectangle in map pixels of the other layer (all layers share the same top left corner)
+    float ratio = layer.getMeterPerPixel() / other.getMeterPerPixel();
+    float left = x * incX * ratio;
+    float top = y * incY * ratio;
+    float right = left + incX * ratio;
+    float bottom = top + incY * ratio;
+    
+    // the other layer's tiles covering it, more than one per layer out if the ratio isn't a whole fraction
+    float otherIncX = other.getTileSizeX();
+    float otherIncY = other.getTileSizeY();
+    int minX = (int) (left / otherIncX);
+    int maxX = (int) Math.ceil(right / otherIncX) - 1;
+    int minY = (int) (top / otherIncY);
+    int maxY = (int) Math.ceil(bottom / otherIncY) - 1;
+    
+    if (!isInMemory(other, minX, maxX, minY, maxY)) {
+      return false;
+    }
+    
+    for (int i = minX; i <= maxX; i++) {
+      for (int j = minY; j <= maxY; j++) {
+        
+        Bitmap bitmap = viewListener.onPeekTile(other, i, j).getBitmap();
+        
+        // the part of the other layer's tile covering the tile in map pixels of the other layer
+        float tileLeft = i * otherIncX;
+        float tileTop = j * otherIncY;
+        float partLeft = Math.max(left, tileLeft);
+        float partTop = Math.max(top, tileTop);
+        float partRight = Math.min(right, tileLeft + otherIncX);
+        float partBottom = Math.min(bottom, tileTop + otherIncY);
+        
+        float bitmapScaleX = bitmap.getWidth() / otherIncX;
+        float bitmapScaleY = bitmap.getHeight() / otherIncY;
+        standInSource.set((int) ((partLeft - tileLeft) * bitmapScaleX), (int) ((partTop - tileTop) * bitmapScaleY), (int) Math.ceil((partRight - tileLeft) * bitmapScaleX), (int) Math.ceil((partBottom - tileTop) * bitmapScaleY));
+        standInTarget.set(partLeft / ratio, partTop / ratio, partRight / ratio, partBottom / ratio);
+        canvas.drawBitmap(bitmap, standInSource, standInTarget, standInPaint);
+      }
+    }
+    
+    return true;
+  }
+  
+  private boolean isInMemory(Layer other, int minX, int maxX, int minY, int maxY) {
+    
+    for (int i = minX; i <= maxX; i++) {
+      for (int j = minY; j <= maxY; j++) {
+        Tile tile = viewListener.onPeekTile(other, i, j);
+        if (tile == null || tile.getBitmap() == null) {
+          return false;
+        }
+      }
+    }
+    
+    return true;
+  }
+
   private final void drawPoiPosition(Canvas canvas) {
     
     if (poiLocation == null) {
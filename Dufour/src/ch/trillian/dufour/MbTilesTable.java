@@ -0,0 +1,120 @@
+package ch.trillian.dufour;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+// the tables of an MBTiles package: the zoom level of a layer is it's URL name (or it's index if that isn't a number),
+// columns are the layer's URL tile indexes and rows count the URL tile indexes from the bottom as in TMS
+public class MbTilesTable {
+
+  public static final String TABLE_TILES = "tiles";
+  public static final String COL_ZOOM_LEVEL = "zoom_level";
+  public static final String COL_TILE_COLUMN = "tile_column";
+  public static final String COL_TILE_ROW = "tile_row";
+  public static final String COL_TILE_DATA = "tile_data";
+
+  public static final String TABLE_METADATA = "metadata";
+  public static final String COL_NAME = "name";
+  public static final String COL_VALUE = "value";
+
+  private static final String SQL_CREATE_TILES = "CREATE TABLE "
+      + TABLE_TILES
+      + "("
+      + COL_ZOOM_LEVEL + " INTEGER, "
+      + COL_TILE_COLUMN + " INTEGER, "
+      + COL_TILE_ROW + " INTEGER, "
+      + COL_TILE_DATA + " BLOB"
+      + ");";
+
+  private static final String SQL_CREATE_INDEX = "CREATE UNIQUE INDEX tile_index ON " + TABLE_TILES + " (" + COL_ZOOM_LEVEL + ", " + COL_TILE_COLUMN + ", " + COL_TILE_ROW + ")";
+
+  private static final String SQL_CREATE_METADATA = "CREATE TABLE "
+      + TABLE_METADATA
+      + "("
+      + COL_NAME + " TEXT, "
+      + COL_VALUE + " TEXT"
+      + ");";
+
+  private static final String SQL_SELECT_TILES = "SELECT " + COL_ZOOM_LEVEL + ", " + COL_TILE_COLUMN + ", " + COL_TILE_ROW + ", " + COL_TILE_DATA + " FROM " + TABLE_TILES;
+
+  // a page of at most LIMIT tiles following a zoom level, column and row in the order of the tile index, args are
+  // zoom level, column, row, zoom level, column, zoom level, limit: the rest of the column, the rest of the zoom level
+  // and the following zoom levels are each a range of the index and merged in order, so a page never scans the tiles
+  // before it (a single condition with ORs would, and row values like (a, b) > (?, ?) need a newer SQLite)
+  public static final String SQL_GET_TILES_AFTER = SQL_SELECT_TILES + " WHERE " + COL_ZOOM_LEVEL + " = ? AND " + COL_TILE_COLUMN + " = ? AND " + COL_TILE_ROW + " > ?"
+      + " UNION ALL " + SQL_SELECT_TILES + " WHERE " + COL_ZOOM_LEVEL + " = ? AND " + COL_TILE_COLUMN + " > ?"
+      + " UNION ALL " + SQL_SELECT_TILES + " WHERE " + COL_ZOOM_LEVEL + " > ?"
+      + " ORDER BY 1, 2, 3 LIMIT ?";
+  public static final String SQL_INSERT_TILE = "INSERT OR REPLACE INTO " + TABLE_TILES + " (" + COL_ZOOM_LEVEL + ", " + COL_TILE_COLUMN + ", " + COL_TILE_ROW + ", " + COL_TILE_DATA + ") VALUES (?, ?, ?, ?)";
+  private static final String SQL_SET_METADATA = "INSERT INTO " + TABLE_METADATA + " (" + COL_NAME + ", " + COL_VALUE + ") VALUES (?, ?)";
+
+  public static void onCreate(SQLiteDatabase database) {
+
+    database.execSQL(SQL_CREATE_TILES);
+    database.execSQL(SQL_CREATE_INDEX);
+    database.execSQL(SQL_CREATE_METADATA);
+  }
+
+  public static void setMetadata(SQLiteDatabase database, String name, String value) {
+
+    SQLiteStatement statement = database.compileStatement(SQL_SET_METADATA);
+    try {
+      statement.bindString(1, name);
+      statement.bindString(2, value);
+      statement.executeInsert();
+    } finally {
+      statement.close();
+    }
+  }
+
+  public static int getZoomLevel(Layer layer) {
+
+    try {
+      return Integer.parseInt(layer.getUrlName());
+    } catch (NumberFormatException e) {
+      return layer.getIndex();
+    }
+  }
+
+  // returns the layer of a zoom level or null if the map has no such layer
+  public static Layer getLayer(Map map, int zoomLevel) {
+
+    for (Layer layer : map.getLayers()) {
+      if (getZoomLevel(layer) == zoomLevel) {
+        return layer;
+      }
+    }
+
+    return null;
+  }
+
+  public static int getColumn(Layer layer, int x) {
+
+    return layer.getUrlX(x);
+  }
+
+  public static int getRow(Layer layer, int y) {
+
+    return layer.getUrlY(layer.getSizeY() - 1 - y);
+  }
+
+  public static int getX(Layer layer, int column) {
+
+    return layer.getTileX(column);
+  }
+
+  public static int getY(Layer layer, int row) {
+
+    return layer.getSizeY() - 1 - layer.getTileY(row);
+  }
+
+  // the value of the format metadata for an encoded image
+  public static String getFormat(byte[] image) {
+
+    if (image.length > 1 && (image[0] & 0xff) == 0xff && (image[1] & 0xff) == 0xd8) {
+      return "jpg";
+    }
+
+    return "png";
+  }
+}
@@ -0,0 +1,150 @@
+package ch.trillian.dufour;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.util.Log;
+
+// the tiles the server answered with "not found", kept as one bit per tile of each layer and saved to a file
+// so they are never requested again
+public class MissingTiles {
+
+  private static final String TAG = "MISSING";
+
+  private final File file;
+
+  // the bits of each layer by layer index, tile (x, y) is bit y * sizeX + x
+  private final long[][] bits;
+
+  // whether there are tiles that haven't been saved yet
+  private boolean dirty;
+
+  public MissingTiles(Map map, File file) {
+
+    this.file = file;
+
+    bits = new long[map.getLayerCount()][];
+    for (Layer layer : map.getLayers()) {
+      bits[layer.getIndex()] = new long[(layer.getSizeX() * layer.getSizeY() + 63) / 64];
+    }
+  }
+
+  public synchronized boolean isMissing(Tile tile) {
+
+    int index = getIndex(tile);
+
+    return (bits[tile.getLayer().getIndex()][index >> 6] & (1L << index)) != 0;
+  }
+
+  public synchronized void setMissing(Tile tile) {
+
+    int index = getIndex(tile);
+
+    bits[tile.getLayer().getIndex()][index >> 6] |= 1L << index;
+    dirty = true;
+  }
+
+  public synchronized boolean isDirty() {
+
+    return dirty;
+  }
+
+  private static int getIndex(Tile tile) {
+
+    return tile.getY() * tile.getLayer().getSizeX() + tile.getX();
+  }
+
+  // reads the saved tiles, layers whose size has changed since are dropped
+  public void load() {
+
+    DataInputStream in;
+    try {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    } catch (FileNotFoundException e) {
+      return;
+    }
+
+    try {
+      int layerCount = in.readInt();
+      for (int i = 0; i < layerCount; i++) {
+        long[] layerBits = new long[in.readInt()];
+        for (int j = 0; j < layerBits.length; j++) {
+          layerBits[j] = in.readLong();
+        }
+        synchronized (this) {
+          if (i < bits.length && layerBits.length == bits[i].length) {
+            for (int j = 0; j < layerBits.length; j++) {
+              bits[i][j] |= layerBits[j];
+            }
+          }
+        }
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Reading missing tiles failed: " + e.getMessage(), e);
+    } finally {
+      close(in);
+    }
+  }
+
+  // writes the tiles to a temporary file replacing the old one, does nothing if nothing has changed
+  public void save() {
+
+    long[][] copy = new long[bits.length][];
+
+    synchronized (this) {
+      if (!dirty) {
+        return;
+      }
+      for (int i = 0; i < bits.length; i++) {
+        copy[i] = bits[i].clone();
+      }
+      dirty = false;
+    }
+
+    File tempFile = new File(file.getPath() + ".tmp");
+    DataOutputStream out = null;
+
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      out.writeInt(copy.length);
+      for (long[] layerBits : copy) {
+        out.writeInt(layerBits.length);
+        for (long word : layerBits) {
+          out.writeLong(word);
+        }
+      }
+      out.close();
+      out = null;
+
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Can't rename " + tempFile + " to " + file);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Writing missing tiles failed: " + e.getMessage(), e);
+      synchronized (this) {
+        dirty = true;
+      }
+    } finally {
+      if (out != null) {
+        close(out);
+      }
+    }
+  }
+
+  private static void close(Closeable closeable) {
+
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // nothing left to do
+    }
+  }
+}
@@ -0,0 +1,638 @@
+package ch.trillian.dufour;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import android.util.Log;
+
+// stores the tile images appended to a pack file, which is mapped into memory in chunks of fixed size, and
+// their location in an index of fixed-size entries, which is read into memory when opening (each chunk is mapped
+// once as the pack grows and an image never spans two chunks, compaction keeps the pack below about twice the
+// cache size)
+public class PackTileStore implements TileStore {
+
+  private static final String TAG = "PACK";
+
+  private static final String PACK_NAME = "tiles.pack";
+  private static final String INDEX_NAME = "tiles.idx";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  // the size of a mapped chunk of the pack, the pack file always ends at a chunk boundary
+  private static final int CHUNK_SHIFT = 23;
+  private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+  private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+  // an index entry: key, offset, last used, image hash (long) and size (int) padded to 40 bytes, a size of 0 marks
+  // a free entry
+  private static final int ENTRY_SIZE = 40;
+
+  // the pack is compacted once this percentage of it is taken by deleted or replaced images,
+  // when writing or when asked to by compact() while the loaders are idle
+  private static final int COMPACT_THRESHOLD = 50;
+  private static final int IDLE_COMPACT_THRESHOLD = 20;
+
+  private static final Comparator<Entry> LAST_USED_ORDER = new Comparator<Entry>() {
+
+    @Override
+    public int compare(Entry entry1, Entry entry2) {
+
+      return entry1.lastUsed < entry2.lastUsed ? -1 : entry1.lastUsed > entry2.lastUsed ? 1 : 0;
+    }
+  };
+
+  private static final Comparator<Entry> OFFSET_ORDER = new Comparator<Entry>() {
+
+    @Override
+    public int compare(Entry entry1, Entry entry2) {
+
+      return entry1.offset < entry2.offset ? -1 : entry1.offset > entry2.offset ? 1 : 0;
+    }
+  };
+
+  // a stored tile, only changed holding the index lock
+  private static class Entry {
+
+    private final long key;
+    private int slot;
+    private long offset;
+    private int size;
+    private long lastUsed;
+    private long hash;
+
+    public Entry(long key, int slot) {
+
+      this.key = key;
+      this.slot = slot;
+    }
+  }
+
+  private final File directory;
+
+  // the map whose tiles we store
+  private final Map map;
+
+  // the number of open 'connections'
+  private int openCount = 0;
+
+  // the files, only used holding our lock (writes are serialized by it, reads don't take it)
+  private RandomAccessFile packFile;
+  private RandomAccessFile indexFile;
+
+  // the end of the images in the pack file, the number of index entries and the free ones among them
+  private long packSize;
+  private int slotCount;
+  private final ArrayList<Integer> freeSlots = new ArrayList<Integer>();
+
+  // the entries by tile key and the mapped chunks of the pack, all that readers need (guarded by indexLock)
+  private final Object indexLock = new Object();
+  private final HashMap<Long, Entry> entries = new HashMap<Long, Entry>();
+  private final ArrayList<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+
+  private volatile int tileCount;
+  private volatile long tileBytes;
+
+  // the bytes of the images of each layer by layer index (only used holding our lock)
+  private final long[] layerBytes;
+
+  private final ByteBuffer entryBuffer = ByteBuffer.allocate(ENTRY_SIZE);
+
+  public PackTileStore(File directory, Map map) {
+
+    this.directory = directory;
+    this.map = map;
+
+    layerBytes = new long[map.getLayerCount()];
+  }
+
+  @Override
+  public synchronized void openDatabase() {
+
+    long start = System.currentTimeMillis();
+
+    if (openCount == 0) {
+      try {
+        recover();
+        packFile = new RandomAccessFile(new File(directory, PACK_NAME), "rw");
+        indexFile = new RandomAccessFile(new File(directory, INDEX_NAME), "rw");
+        long fileSize = packFile.length();
+        readIndex(fileSize);
+        ArrayList<MappedByteBuffer> mapped = mapChunks(fileSize);
+        synchronized (indexLock) {
+          chunks.addAll(mapped);
+        }
+        Log.i(TAG, String.format("Opened (tileCount=%d, tileBytes=%d, packSize=%d)", tileCount, tileBytes, packSize));
+      } catch (IOException e) {
+        Log.w(TAG, "Opening pack failed: " + e.getMessage(), e);
+        close();
+      }
+    }
+
+    openCount++;
+
+    Log.i(TAG, String.format("Opened in %d ms (openCount=%d)", (System.currentTimeMillis() - start), openCount));
+  }
+
+  @Override
+  public synchronized void closeDatabase() {
+
+    openCount--;
+
+    if (openCount == 0) {
+      close();
+    }
+
+    Log.i(TAG, String.format("Closed (openCount=%d)", openCount));
+  }
+
+  @Override
+  public int getTileCount() {
+
+    return tileCount;
+  }
+
+  @Override
+  public long getTileBytes() {
+
+    return tileBytes;
+  }
+
+  // passes slices of the mapped pack to the listener, the images aren't copied and the lock is only held for the lookup
+  @Override
+  public void readTileImages(List<Tile> tiles, TileImageListener listener) {
+
+    for (Tile tile : tiles) {
+
+      ByteBuffer image;
+      long hash;
+
+      synchronized (indexLock) {
+        Entry entry = entries.get(tile.getKey());
+        if (entry == null) {
+          continue;
+        }
+        tile.setLastUsed(entry.lastUsed);
+        hash = entry.hash;
+        image = getImage(entry);
+      }
+
+      listener.onTileImage(tile, hash, image);
+    }
+  }
+
+  @Override
+  public synchronized void writeTiles(List<Tile> tiles, List<byte[]> images, long[] hashes, long minBytes, long maxBytes) {
+
+    long start = System.currentTimeMillis();
+
+    if (packFile == null) {
+      return;
+    }
+
+    try {
+
+      // append the images through the mapped chunks and make sure they're on disk before the index points to them
+      long[] offsets = new long[tiles.size()];
+      int firstChunk = (int) (packSize >>> CHUNK_SHIFT);
+      for (int i = 0; i < tiles.size(); i++) {
+        byte[] image = images.get(i);
+        if (image.length > CHUNK_SIZE) {
+          Log.w(TAG, "Image too large, not storing tile: " + tiles.get(i));
+          offsets[i] = -1;
+          continue;
+        }
+        offsets[i] = getImageOffset(packSize, image.length);
+        ByteBuffer target = getChunk((int) (offsets[i] >>> CHUNK_SHIFT)).duplicate();
+        target.position((int) (offsets[i] & CHUNK_MASK));
+        target.put(image);
+        packSize = offsets[i] + image.length;
+      }
+      for (int chunk = firstChunk; chunk < chunks.size(); chunk++) {
+        chunks.get(chunk).force();
+      }
+
+      Entry[] written = new Entry[tiles.size()];
+      for (int i = 0; i < tiles.size(); i++) {
+
+        if (offsets[i] < 0) {
+          continue;
+        }
+
+        Tile tile = tiles.get(i);
+        Entry entry;
+        synchronized (indexLock) {
+          entry = entries.get(tile.getKey());
+        }
+
+        // a replaced tile keeps its index entry
+        int slot;
+        if (entry != null) {
+          slot = entry.slot;
+        } else if (!freeSlots.isEmpty()) {
+          slot = freeSlots.remove(freeSlots.size() - 1);
+        } else {
+          slot = slotCount++;
+        }
+
+        writeEntry(slot, tile.getKey(), offsets[i], tile.getLastUsed(), hashes[i], images.get(i).length);
+        written[i] = entry != null ? entry : new Entry(tile.getKey(), slot);
+      }
+
+      synchronized (indexLock) {
+        for (int i = 0; i < written.length; i++) {
+          Entry entry = written[i];
+          if (entry == null) {
+            continue;
+          }
+          if (entries.put(entry.key, entry) == null) {
+            tileCount++;
+          } else {
+            tileBytes -= entry.size;
+            addLayerBytes(entry.key, -entry.size);
+          }
+          entry.offset = offsets[i];
+          entry.size = images.get(i).length;
+          entry.lastUsed = tiles.get(i).getLastUsed();
+          entry.hash = hashes[i];
+          tileBytes += entry.size;
+          addLayerBytes(entry.key, entry.size);
+        }
+      }
+
+      // pinned layers don't count, else a large pinned layer would have every write evict the others
+      if (map.getUnpinnedBytes(layerBytes) > maxBytes) {
+        deleteOverQuota(minBytes);
+      }
+
+      if (packSize - tileBytes > packSize / 100 * COMPACT_THRESHOLD) {
+        compactPack();
+      }
+
+    } catch (IOException e) {
+      Log.w(TAG, "Writing tiles failed: " + e.getMessage(), e);
+    }
+
+    Log.i(TAG, String.format("Wrote %d tiles in %d ms (tileCount=%d, tileBytes=%d)", tiles.size(), (System.currentTimeMillis() - start), tileCount, tileBytes));
+  }
+
+  @Override
+  public synchronized void updateLastUsed(long[] keys, int count, long lastUsed) {
+
+    long start = System.currentTimeMillis();
+
+    if (packFile == null) {
+      return;
+    }
+
+    try {
+      for (int i = 0; i < count; i++) {
+        Entry entry;
+        synchronized (indexLock) {
+          entry = entries.get(keys[i]);
+          if (entry == null) {
+            continue;
+          }
+          entry.lastUsed = lastUsed;
+        }
+        writeEntry(entry.slot, entry.key, entry.offset, entry.lastUsed, entry.hash, entry.size);
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Updating last used failed: " + e.getMessage(), e);
+    }
+
+    Log.i(TAG, String.format("Updated last-used of %d tiles in %d ms", count, (System.currentTimeMillis() - start)));
+  }
+
+  // compacts the whole pack at once, but only if enough of it is dead
+  @Override
+  public synchronized long compact() {
+
+    if (packFile == null || packSize - tileBytes <= packSize / 100 * IDLE_COMPACT_THRESHOLD) {
+      return 0;
+    }
+
+    long oldPackSize = packSize;
+    compactPack();
+
+    return Math.max(0, oldPackSize - packSize);
+  }
+
+  // copies the live images into a new pack and index and replaces the old ones with them
+  private void compactPack() {
+
+    long start = System.currentTimeMillis();
+
+    File packTemp = new File(directory, PACK_NAME + TEMP_SUFFIX);
+    File indexTemp = new File(directory, INDEX_NAME + TEMP_SUFFIX);
+    long oldPackSize = packSize;
+
+    ArrayList<Entry> live;
+    ArrayList<ByteBuffer> images = new ArrayList<ByteBuffer>();
+    synchronized (indexLock) {
+      live = new ArrayList<Entry>(entries.values());
+    }
+
+    // read the old pack sequentially
+    Collections.sort(live, OFFSET_ORDER);
+    synchronized (indexLock) {
+      for (Entry entry : live) {
+        images.add(getImage(entry));
+      }
+    }
+
+    try {
+
+      long[] offsets = new long[live.size()];
+      long position = 0;
+
+      RandomAccessFile newPackFile = new RandomAccessFile(packTemp, "rw");
+      RandomAccessFile newIndexFile = new RandomAccessFile(indexTemp, "rw");
+      try {
+        newPackFile.setLength(0);
+        newIndexFile.setLength(0);
+        for (int i = 0; i < live.size(); i++) {
+          Entry entry = live.get(i);
+          offsets[i] = getImageOffset(position, entry.size);
+          write(newPackFile.getChannel(), images.get(i), offsets[i]);
+          position = offsets[i] + entry.size;
+          write(newIndexFile.getChannel(), encodeEntry(entry.key, offsets[i], entry.lastUsed, entry.hash, entry.size), (long) i * ENTRY_SIZE);
+        }
+        newPackFile.setLength(getChunkCount(position) * (long) CHUNK_SIZE);
+        newPackFile.getChannel().force(false);
+        newIndexFile.getChannel().force(false);
+      } finally {
+        newPackFile.close();
+        newIndexFile.close();
+      }
+
+      // the old index goes first, see recover() for what happens if we don't get to the end,
+      // readers keep reading the old (unlinked) pack through the old chunks until they are swapped below
+      packFile.close();
+      indexFile.close();
+      packFile = null;
+      indexFile = null;
+      File packPath = new File(directory, PACK_NAME);
+      File indexPath = new File(directory, INDEX_NAME);
+      if (!indexPath.delete() || !packTemp.renameTo(packPath) || !indexTemp.renameTo(indexPath)) {
+        throw new IOException("Replacing pack files failed");
+      }
+
+      packFile = new RandomAccessFile(packPath, "rw");
+      indexFile = new RandomAccessFile(indexPath, "rw");
+      packSize = position;
+      slotCount = live.size();
+      freeSlots.clear();
+      ArrayList<MappedByteBuffer> mapped = mapChunks(packFile.length());
+
+      // swap the chunks and the offsets at once so readers never mix old offsets with new chunks
+      synchronized (indexLock) {
+        chunks.clear();
+        chunks.addAll(mapped);
+        for (int i = 0; i < live.size(); i++) {
+          live.get(i).slot = i;
+          live.get(i).offset = offsets[i];
+        }
+      }
+
+    } catch (IOException e) {
+      Log.w(TAG, "Compacting pack failed: " + e.getMessage(), e);
+      close();
+      return;
+    }
+
+    Log.i(TAG, String.format("Compacted %d to %d bytes in %d ms", oldPackSize, packSize, (System.currentTimeMillis() - start)));
+  }
+
+  // deletes the least recently used tiles of the layers over their quota (see Map.getBytesOverQuota())
+  // until the tiles fit into maxBytes if possible
+  private void deleteOverQuota(long maxBytes) throws IOException {
+
+    long start = System.currentTimeMillis();
+
+    ArrayList<Entry> sorted;
+    synchronized (indexLock) {
+      sorted = new ArrayList<Entry>(entries.values());
+    }
+    Collections.sort(sorted, LAST_USED_ORDER);
+
+    long[] bytesOverQuota = map.getBytesOverQuota(layerBytes, maxBytes);
+
+    ArrayList<Entry> deleted = new ArrayList<Entry>();
+    long bytesDeleted = 0;
+    for (Entry entry : sorted) {
+      int layerIndex = Tile.getKeyLayerIndex(entry.key);
+      if (layerIndex < bytesOverQuota.length && bytesOverQuota[layerIndex] > 0) {
+        writeEntry(entry.slot, 0, 0, 0, 0, 0);
+        freeSlots.add(entry.slot);
+        bytesOverQuota[layerIndex] -= entry.size;
+        layerBytes[layerIndex] -= entry.size;
+        bytesDeleted += entry.size;
+        deleted.add(entry);
+      }
+    }
+
+    int tilesDeleted = deleted.size();
+    synchronized (indexLock) {
+      for (Entry entry : deleted) {
+        entries.remove(entry.key);
+      }
+      tileCount -= tilesDeleted;
+      tileBytes -= bytesDeleted;
+    }
+
+    Log.i(TAG, String.format("Deleted %d tiles in %d ms (tileCount=%d, tileBytes=%d)", tilesDeleted, (System.currentTimeMillis() - start), tileCount, tileBytes));
+  }
+
+  // finishes or rolls back an interrupted compaction
+  private void recover() {
+
+    File indexPath = new File(directory, INDEX_NAME);
+    File packTemp = new File(directory, PACK_NAME + TEMP_SUFFIX);
+    File indexTemp = new File(directory, INDEX_NAME + TEMP_SUFFIX);
+
+    if (!indexPath.exists() && !packTemp.exists() && indexTemp.exists()) {
+      // the new pack is in place already, only the index is missing
+      indexTemp.renameTo(indexPath);
+    }
+
+    // anything else left over belongs to a compaction that didn't replace the pack,
+    // without an index the old pack is dead and gets compacted away later
+    packTemp.delete();
+    indexTemp.delete();
+  }
+
+  private void readIndex(long fileSize) throws IOException {
+
+    synchronized (indexLock) {
+
+      entries.clear();
+      freeSlots.clear();
+      tileCount = 0;
+      tileBytes = 0;
+      Arrays.fill(layerBytes, 0);
+      packSize = 0;
+
+      slotCount = (int) (indexFile.length() / ENTRY_SIZE);
+      if (slotCount == 0) {
+        return;
+      }
+
+      ByteBuffer buffer = indexFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, (long) slotCount * ENTRY_SIZE);
+
+      for (int slot = 0; slot < slotCount; slot++) {
+
+        long key = buffer.getLong();
+        long offset = buffer.getLong();
+        long lastUsed = buffer.getLong();
+        long hash = buffer.getLong();
+        int size = buffer.getInt();
+        buffer.getInt();
+
+        // free entries, entries of images that never made it to the pack and of images spanning two chunks
+        if (size <= 0 || offset + size > fileSize || getImageOffset(offset, size) != offset || entries.containsKey(key)) {
+          freeSlots.add(slot);
+          continue;
+        }
+
+        Entry entry = new Entry(key, slot);
+        entry.offset = offset;
+        entry.size = size;
+        entry.lastUsed = lastUsed;
+        entry.hash = hash;
+        entries.put(key, entry);
+        tileCount++;
+        tileBytes += size;
+        addLayerBytes(key, size);
+        packSize = Math.max(packSize, offset + size);
+      }
+    }
+  }
+
+  // maps the chunks of a pack file of the given size, growing the file to whole chunks
+  private ArrayList<MappedByteBuffer> mapChunks(long fileSize) throws IOException {
+
+    int chunkCount = getChunkCount(fileSize);
+    if (packFile.length() < chunkCount * (long) CHUNK_SIZE) {
+      packFile.setLength(chunkCount * (long) CHUNK_SIZE);
+    }
+
+    ArrayList<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>(chunkCount);
+    for (int chunk = 0; chunk < chunkCount; chunk++) {
+      mapped.add(packFile.getChannel().map(FileChannel.MapMode.READ_WRITE, chunk * (long) CHUNK_SIZE, CHUNK_SIZE));
+    }
+
+    return mapped;
+  }
+
+  // returns a chunk of the pack, growing the pack file and mapping the chunk if it isn't mapped yet
+  // (must be called holding our lock)
+  private MappedByteBuffer getChunk(int chunk) throws IOException {
+
+    while (chunks.size() <= chunk) {
+      long end = (chunks.size() + 1) * (long) CHUNK_SIZE;
+      if (packFile.length() < end) {
+        packFile.setLength(end);
+      }
+      MappedByteBuffer buffer = packFile.getChannel().map(FileChannel.MapMode.READ_WRITE, end - CHUNK_SIZE, CHUNK_SIZE);
+      synchronized (indexLock) {
+        chunks.add(buffer);
+      }
+    }
+
+    return chunks.get(chunk);
+  }
+
+  // returns the image of an entry as a slice of it's chunk (must be called holding the index lock)
+  private ByteBuffer getImage(Entry entry) {
+
+    ByteBuffer image = chunks.get((int) (entry.offset >>> CHUNK_SHIFT)).duplicate();
+    image.position((int) (entry.offset & CHUNK_MASK));
+    image.limit(image.position() + entry.size);
+
+    return image.slice();
+  }
+
+  // returns where an image of the given size goes when appended at position: there or at the start of the next
+  // chunk if it doesn't fit into the current one
+  private static long getImageOffset(long position, int size) {
+
+    if ((position & CHUNK_MASK) + size > CHUNK_SIZE) {
+      return (position | CHUNK_MASK) + 1;
+    }
+
+    return position;
+  }
+
+  private static int getChunkCount(long size) {
+
+    return (int) ((size + CHUNK_SIZE - 1) >>> CHUNK_SHIFT);
+  }
+
+  private void close() {
+
+    try {
+      if (packFile != null) {
+        packFile.close();
+      }
+      if (indexFile != null) {
+        indexFile.close();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Closing pack failed: " + e.getMessage(), e);
+    }
+
+    packFile = null;
+    indexFile = null;
+
+    synchronized (indexLock) {
+      chunks.clear();
+      entries.clear();
+      tileCount = 0;
+      tileBytes = 0;
+    }
+    Arrays.fill(layerBytes, 0);
+  }
+
+  private void addLayerBytes(long key, long bytes) {
+
+    int layerIndex = Tile.getKeyLayerIndex(key);
+    if (layerIndex < layerBytes.length) {
+      layerBytes[layerIndex] += bytes;
+    }
+  }
+
+  private void writeEntry(int slot, long key, long offset, long lastUsed, long hash, int size) throws IOException {
+
+    write(indexFile.getChannel(), encodeEntry(key, offset, lastUsed, hash, size), (long) slot * ENTRY_SIZE);
+  }
+
+  private ByteBuffer encodeEntry(long key, long offset, long lastUsed, long hash, int size) {
+
+    entryBuffer.clear();
+    entryBuffer.putLong(key);
+    entryBuffer.putLong(offset);
+    entryBuffer.putLong(lastUsed);
+    entryBuffer.putLong(hash);
+    entryBuffer.putInt(size);
+    entryBuffer.putInt(0);
+    entryBuffer.flip();
+
+    return entryBuffer;
+  }
+
+  private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+}
@@ -8,16 +8,76 @@ public class Tile {
   private final Layer layer; 
   private final int x;
   private final int y;
+  private final long key;
   private boolean loadFailed;
+  private boolean missing;
+  private int loadAttempts;
+  
+  // set when the tile's load has been cancelled (read by the loader threads)
+  private volatile boolean loadCancelled;
   
   private Bitmap bitmap;
   private long lastUsed;
   
+  // the neighbours in the TileMap's list of tiles by last use
+  Tile newer;
+  Tile older;
+  
   public Tile(Layer layer, int x, int y) {
     
     this.layer = layer;
     this.x = x;
     this.y = y;
+    this.key = getKey(layer, x, y);
+  }
+
+  // packs layer index, x and y into a key which is unique within a map, x and y are interleaved
+  // (morton order) so tiles close to each other on the map are close to each other on disk
+  public static long getKey(Layer layer, int x, int y) {
+    
+    return ((long) layer.getIndex() << 48) | spreadBits(x) | (spreadBits(y) << 1);
+  }
+
+  // spreads the lower 24 bits of value to the even bits of the result
+  private static long spreadBits(int value) {
+    
+    long bits = value & 0xFFFFFFL;
+    bits = (bits | (bits << 16)) & 0x0000FFFF0000FFFFL;
+    bits = (bits | (bits << 8)) & 0x00FF00FF00FF00FFL;
+    bits = (bits | (bits << 4)) & 0x0F0F0F0F0F0F0F0FL;
+    bits = (bits | (bits << 2)) & 0x3333333333333333L;
+    bits = (bits | (bits << 1)) & 0x5555555555555555L;
+    
+    return bits;
+  }
+
+  // the layer index, x and y of a key made by getKey()
+  public static int getKeyLayerIndex(long key) {
+    
+    return (int) (key >>> 48);
+  }
+
+  public static int getKeyX(long key) {
+    
+    return compactBits(key);
+  }
+
+  public static int getKeyY(long key) {
+    
+    return compactBits(key >>> 1);
+  }
+
+  // gathers the even bits of the lower 48 bits of value into the lower 24 bits of the result
+  private static int compactBits(long value) {
+    
+    long bits = value & 0x555555555555L;
+    bits = (bits | (bits >>> 1)) & 0x3333333333333333L;
+    bits = (bits | (bits >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+    bits = (bits | (bits >>> 4)) & 0x00FF00FF00FF00FFL;
+    bits = (bits | (bits >>> 8)) & 0x0000FFFF0000FFFFL;
+    bits = (bits | (bits >>> 16)) & 0xFFFFFFL;
+    
+    return (int) bits;
   }
 
   @SuppressLint("DefaultLocale")
@@ -43,8 +103,12 @@ public class Tile {
     return y;
   }
 
+  public long getKey() {
+    return key;
+  }
+
   public boolean isLoading() {
-    return  !loadFailed && bitmap == null;
+    return  !loadFailed && !missing && bitmap == null;
   }
 
   public Bitmap getBitmap() {
@@ -70,4 +134,28 @@ public class Tile {
   public void setLoadFailed(boolean loadFailed) {
     this.loadFailed = loadFailed;
   }
+
+  public boolean isMissing() {
+    return missing;
+  }
+
+  public void setMissing(boolean missing) {
+    this.missing = missing;
+  }
+
+  public int getLoadAttempts() {
+    return loadAttempts;
+  }
+
+  public void setLoadAttempts(int loadAttempts) {
+    this.loadAttempts = loadAttempts;
+  }
+
+  public boolean isLoadCancelled() {
+    return loadCancelled;
+  }
+
+  public void setLoadCancelled(boolean loadCancelled) {
+    this.loadCancelled = loadCancelled;
+  }
 }
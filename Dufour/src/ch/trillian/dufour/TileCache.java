@@ -9,8 +9,28 @@ public class TileCache {
   public final static int PRELOAD_SIZE = 1;
 
   private Map map;
-  private Tile[][][] cache;
+  private TileMap tiles;
+  private int preloadSize;
   private CacheListener cacheListener;
+  
+  // the pool taking the bitmaps of evicted tiles
+  private BitmapPool bitmapPool;
+  
+  // the cache taking the loaded tiles dropped from any layer
+  private BitmapCache bitmapCache;
+  
+  // the tiles known not to exist, they are never ordered
+  private MissingTiles missingTiles;
+  
+  // the maximum number of tiles of a single layer needed to cover the screen and the preload ring
+  private int layerCapacity;
+  
+  // the last preloaded region
+  private Layer regionLayer;
+  private int regionMinTileX;
+  private int regionMaxTileX;
+  private int regionMinTileY;
+  private int regionMaxTileY;
 
   public interface CacheListener {
 
@@ -22,10 +42,16 @@ public class TileCache {
   public TileCache(Map map, int preloadSize, int screenSizeX, int screenSizeY) {
 
     this.map = map;
+    this.preloadSize = preloadSize;
 
-    // create array of layers
-    cache = new Tile[map.getLayerCount()][][];
+    setScreenSize(screenSizeX, screenSizeY);
+  }
+
+  // resizes the cache for another screen size keeping the most recently used tiles and their loads,
+  // the tiles that don't fit anymore are evicted
+  public void setScreenSize(int screenSizeX, int screenSizeY) {
 
+    layerCapacity = 0;
     for (int layerIndex = 0; layerIndex < map.getLayerCount(); layerIndex++) {
 
       Layer layer = map.getLayer(layerIndex);
@@ -34,17 +60,26 @@ public class TileCache {
 
       cacheSizeX = Math.min(cacheSizeX, layer.getSizeX());
       cacheSizeY = Math.min(cacheSizeY, layer.getSizeY());
+      
+      layerCapacity = Math.max(layerCapacity, cacheSizeX * cacheSizeY);
+    }
 
-      // create array of columns
-      cache[layerIndex] = new Tile[cacheSizeY][];
+    // keep the tiles of the current and the previous layer
+    TileMap oldTiles = tiles;
+    tiles = new TileMap(2 * layerCapacity);
 
-      // create arrays of rows
-      for (int y = 0; y < cacheSizeY; y++) {
-        cache[layerIndex][y] = new Tile[cacheSizeX];
+    // move the old tiles over least recently used first so the order is kept
+    if (oldTiles != null) {
+      for (Tile tile = oldTiles.removeOldest(); tile != null; tile = oldTiles.removeOldest()) {
+        dropTile(tiles.put(tile));
       }
+    }
 
-      Log.w("TRILLIAN", "Created cache: mapName=" + map.getName() + ", layerName=" + layer.getName() + ", cacheSizeX=" + cacheSizeX + ", cacheSizeY=" + cacheSizeY);
+    if (bitmapPool != null) {
+      bitmapPool.setCapacity(layerCapacity);
     }
+
+    Log.w("TRILLIAN", "Sized cache: mapName=" + map.getName() + ", capacity=" + tiles.getCapacity() + ", tiles=" + tiles.size());
   }
 
   public void setCacheListener(CacheListener cacheListener) {
@@ -52,6 +87,26 @@ public class TileCache {
     this.cacheListener = cacheListener;
   }
 
+  public void setBitmapCache(BitmapCache bitmapCache) {
+    
+    this.bitmapCache = bitmapCache;
+  }
+  
+  public void setMissingTiles(MissingTiles missingTiles) {
+    
+    this.missingTiles = missingTiles;
+  }
+  
+  public void setBitmapPool(BitmapPool bitmapPool) {
+    
+    this.bitmapPool = bitmapPool;
+    
+    // keep enough bitmaps to replace a whole screen of tiles
+    if (bitmapPool != null) {
+      bitmapPool.setCapacity(layerCapacity);
+    }
+  }
+
   public Tile getTile(Layer layer, int x, int y) {
 
     if (this.map != layer.getMap()) {
@@ -64,29 +119,40 @@ public class TileCache {
       return null;
     }
 
-    int cacheSizeX = cache[layerIndex][0].length;
-    int cacheSizeY = cache[layerIndex].length;
+    long key = Tile.getKey(layer, x, y);
+    Tile tile = tiles.get(key);
 
-    int cacheIndexX = x % cacheSizeX;
-    int cacheIndexY = y % cacheSizeY;
-
-    Tile tile = cache[layerIndex][cacheIndexY][cacheIndexX];
-
-    // check if current cached item matches the requested one
-    if (tile != null) {
-      if (tile.getX() != x || tile.getY() != y) {
-        if (tile.isLoading()) {
-          cancelLoad(tile);
+    // take the tile from the bitmap cache or order a new one if none exists unless it's known not to exist
+    if (tile == null) {
+      if (bitmapCache != null) {
+        tile = bitmapCache.remove(key);
+      }
+      if (tile == null) {
+        tile = new Tile(layer, x, y);
+        if (missingTiles != null && missingTiles.isMissing(tile)) {
+          tile.setMissing(true);
+        } else {
+          orderLoad(tile);
         }
-        tile = null;
       }
+      dropTile(tiles.put(tile));
     }
 
-    // order new tile if none exists
-    if (tile == null) {
-      tile = new Tile(layer, x, y);
-      cache[layerIndex][cacheIndexY][cacheIndexX] = tile;
-      orderLoad(tile);
+    return tile;
+  }
+
+  // returns a tile held by this cache or the bitmap cache without ordering it, null if there's no such tile
+  public Tile peekTile(Layer layer, int x, int y) {
+
+    if (this.map != layer.getMap() || !layer.hasTile(x, y)) {
+      return null;
+    }
+
+    long key = Tile.getKey(layer, x, y);
+    Tile tile = tiles.peek(key);
+
+    if (tile == null && bitmapCache != null) {
+      tile = bitmapCache.peek(key);
     }
 
     return tile;
@@ -96,29 +162,35 @@ public class TileCache {
 
     Log.i(TAG, String.format("Preloading layer=%s, minTileX=%d, maxTileX=%d, minTileY=%d, maxTileY=%d " , layer.getName(), minTileX, maxTileX, minTileY, maxTileY));
     
-    int layerIndex = layer.getIndex();
+    // cancel the loads of the previous region's tiles that have left the region including its preload ring
+    if (regionLayer != null) {
+      for (int y = regionMaxTileY + PRELOAD_SIZE; y >= regionMinTileY - PRELOAD_SIZE; y--) {
+        for (int x = regionMaxTileX + PRELOAD_SIZE; x >= regionMinTileX - PRELOAD_SIZE; x--) {
 
-    // cancel load for all other layers or for tiles that don't fit the region of the current layer
-    for (int l = cache.length - 1; l >= 0; l--) {
-      for (int y = cache[l].length - 1; y >= 0; y--) {
-        for (int x = cache[l][y].length - 1; x >= 0; x--) {
-
-          Tile tile = cache[l][y][x];
-
-          if (tile == null) {
+          if (!regionLayer.hasTile(x, y)) {
+            continue;
+          }
+          
+          if (regionLayer == layer && x >= minTileX - PRELOAD_SIZE && x <= maxTileX + PRELOAD_SIZE && y >= minTileY - PRELOAD_SIZE && y <= maxTileY + PRELOAD_SIZE) {
             continue;
           }
 
-          if (tile.isLoading()) {
-            if ((l != layerIndex) || (l == layerIndex) && (tile.getX() < minTileX || tile.getX() > maxTileX) && (tile.getY() < minTileY || tile.getY() > maxTileY)) {
-              cancelLoad(tile);
-              cache[l][y][x] = null;
-            }
+          Tile tile = tiles.peek(Tile.getKey(regionLayer, x, y));
+
+          if (tile != null && tile.isLoading()) {
+            cancelLoad(tile);
+            tiles.remove(tile.getKey());
           }
         }
       }
     }
 
+    regionLayer = layer;
+    regionMinTileX = minTileX;
+    regionMaxTileX = maxTileX;
+    regionMinTileY = minTileY;
+    regionMaxTileY = maxTileY;
+    
     // order loads for all region's tiles
     for (int y = maxTileY; y >= minTileY; y--) {
       for (int x = maxTileX; x >= minTileX; x--) {
@@ -143,6 +215,57 @@ public class TileCache {
     }
   }
 
+  public void reloadFailedTiles() {
+    
+    if (regionLayer == null) {
+      return;
+    }
+    
+    // re-order all failed tiles of the last preloaded region including its preload ring
+    for (int y = regionMaxTileY + PRELOAD_SIZE; y >= regionMinTileY - PRELOAD_SIZE; y--) {
+      for (int x = regionMaxTileX + PRELOAD_SIZE; x >= regionMinTileX - PRELOAD_SIZE; x--) {
+
+        if (!regionLayer.hasTile(x, y)) {
+          continue;
+        }
+
+        Tile tile = tiles.peek(Tile.getKey(regionLayer, x, y));
+
+        if (tile == null || !tile.isLoadFailed() || tile.isMissing()) {
+          continue;
+        }
+        
+        tile.setLoadFailed(false);
+        orderLoad(tile);
+      }
+    }
+  }
+  
+  // cancels the load of a tile evicted from the cache or hands it over to the bitmap cache
+  private void dropTile(Tile tile) {
+    
+    if (tile == null) {
+      return;
+    }
+    
+    if (tile.isLoading()) {
+      cancelLoad(tile);
+    }
+    if (bitmapCache != null && tile.getBitmap() != null) {
+      bitmapCache.put(tile);
+    } else {
+      releaseBitmap(tile);
+    }
+  }
+  
+  private void releaseBitmap(Tile tile) {
+    
+    if (bitmapPool != null && tile.getBitmap() != null) {
+      bitmapPool.release(tile.getBitmap());
+      tile.setBitmap(null);
+    }
+  }
+  
   private void orderLoad(Tile tile) {
 
     if (cacheListener != null) {
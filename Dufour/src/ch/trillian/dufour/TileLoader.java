@@ -1,15 +1,26 @@
 package ch.trillian.dufour;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.ArrayDeque;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
@@ -21,15 +32,69 @@ public class TileLoader {
   private static final int LOADED_FROM_DB = 1;
   private static final int LOADED_FROM_URL = 2;
   private static final int LOAD_FAILED = 3;
+  private static final int CONNECTIVITY_RESTORED = 4;
+  
+  // the results of a single download attempt
+  private static final int DOWNLOAD_OK = 0;
+  private static final int DOWNLOAD_CANCELLED = 1;
+  private static final int DOWNLOAD_FAILED = 2;
+  private static final int DOWNLOAD_REJECTED = 3;
+  private static final int DOWNLOAD_MISSING = 4;
   
   // the minimum number of milliseconds before updating a tile's LAST_USED
   private static final int LAST_USED_THRESHOLD = 24 * 60 * 60 * 1000;
   
-  // the maximum number of tiles to keep on DB
-  private static int MAX_NUMBER_OF_TILES = 10000;
+  // the default number of bytes of tile images to keep on DB
+  public static final long CACHE_BYTES = 256L * 1024 * 1024;
+  
+  // the percentage of the cache size the DB is shrunk to once it's full
+  private static final int CACHE_LOW_WATERMARK = 90;
+  
+  // the default maximum number of parallel downloads from the same host, there are as many download threads
+  // as that for each host of the map so a single server isn't hit by all of them and none of them is idle
+  public static final int DOWNLOADS_PER_HOST = 4;
+  
+  // the number of threads decoding images read from database
+  private static final int DECODE_THREADS = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+  
+  // the number of downloaded tiles written to database in a single transaction
+  private static final int WRITE_BATCH_SIZE = 16;
+  
+  // the maximum milliseconds a downloaded tile waits before it is written to database
+  private static final int WRITE_DELAY = 2000;
+  
+  // the maximum number of downloaded tiles waiting to be written, further tiles are not stored
+  private static final int WRITE_BUFFER_SIZE = 128;
+  
+  // the number of last used times updated in a single transaction without waiting for WRITE_DELAY
+  private static final int TOUCH_BATCH_SIZE = 256;
+  
+  // the milliseconds the writer has to be idle before it starts compacting the store
+  private static final int COMPACT_DELAY = 10000;
+  
+  // the maximum number of tiles read from database in a single query
+  private static final int READ_BATCH_SIZE = 16;
+  
+  // the initial capacity of the order queues
+  private static final int QUEUE_CAPACITY = 64;
+  
+  // the timeouts in milliseconds for connecting and reading a download
+  private static final int CONNECT_TIMEOUT = 10000;
+  private static final int READ_TIMEOUT = 15000;
   
-  // the number of tiles to delete from DB at once
-  private static int DELETE_CHUNK_SIZE = 25;
+  // the maximum number of retries of a failed download
+  private static final int MAX_RETRIES = 4;
+  
+  // the milliseconds to wait before the first retry, doubled with every further retry
+  private static final int RETRY_DELAY = 1000;
+  private static final int MAX_RETRY_DELAY = 30000;
+  
+  // the number of failed downloads in a row after which we consider the network to be down
+  private static final int BREAKER_THRESHOLD = 6;
+  
+  // the milliseconds to wait before probing a network that is down, doubled with every failed probe
+  private static final int BREAKER_DELAY = 10000;
+  private static final int MAX_BREAKER_DELAY = 120000;
   
   // the listener for finished loads
   private LoadListener loadListener;
@@ -37,15 +102,38 @@ public class TileLoader {
   // the handler for synchronizing messages from threads 
   private final Handler handler;
 
+  // the store keeping the downloaded images
+  private final TileStore tileStore;
+
+  // the tiles known not to exist on the server
+  private final MissingTiles missingTiles;
+
   // the database loader with it's own thread
   private DatabaseLoader databaseLoader;
 
-  // the URL loader with it's own thread
+  // the URL loader with it's own pool of download threads
   private UrlLoader urlLoader;
   
+  // the decoder for images read from database with it's own pool of threads
+  private Decoder decoder;
+  
+  // the writer storing downloaded images with it's own thread
+  private TileWriter tileWriter;
+  
+  // the maximum number of bytes of tile images to keep on DB
+  private volatile long cacheBytes = CACHE_BYTES;
+  
+  // the pool of bitmaps to decode images into, filled by the tile cache
+  private final BitmapPool bitmapPool = new BitmapPool(0);
+  
+  // the running loads by tile key
+  private final HashMap<Long, Load> loads = new HashMap<Long, Load>();
+  
   public interface LoadListener {
 
     public void onLoadFinished(Tile tile);
+    
+    public void onConnectivityRestored();
   }
   
   private static class LoaderHandler extends Handler {
@@ -63,7 +151,11 @@ public class TileLoader {
       if (tileLoader != null) {
         LoadListener listener = tileLoader.loadListener;
         if (listener != null) {
-          listener.onLoadFinished((Tile) message.obj);
+          if (message.what == CONNECTIVITY_RESTORED) {
+            listener.onConnectivityRestored();
+          } else {
+            listener.onLoadFinished((Tile) message.obj);
+          }
         } else {
           Log.w(TAG, "LoadListener is null");
         }
@@ -71,31 +163,149 @@ public class TileLoader {
     }
   };
 
-  public TileLoader(Context context) {
+  // a tile being loaded together with all tiles waiting for the same coordinates
+  private static class Load {
+    
+    // the tile passed through the loader queues
+    private final Tile tile;
+    
+    // all tiles to be notified when the load finishes (including the loaded one unless it has been cancelled)
+    private final ArrayList<Tile> waiters = new ArrayList<Tile>(1);
+    
+    public Load(Tile tile) {
+      
+      this.tile = tile;
+      waiters.add(tile);
+    }
+  }
+  
+  // a downloaded image waiting to be written together with it's hash (see ImageTable.getHash())
+  private static class PendingImage {
+    
+    private final byte[] data;
+    private final long hash;
+    
+    public PendingImage(byte[] data, long hash) {
+      
+      this.data = data;
+      this.hash = hash;
+    }
+  }
+  
+  // orders tiles by their distance to the center of the displayed region, tiles inside the
+  // region come before the preload ring around it, tiles of other layers come last
+  private static class RegionComparator implements Comparator<Tile> {
+    
+    private Layer layer;
+    
+    private int minTileX;
+    private int maxTileX;
+    private int minTileY;
+    private int maxTileY;
+    
+    public void setRegion(Layer layer, int minTileX, int maxTileX, int minTileY, int maxTileY) {
+      
+      this.layer = layer;
+      this.minTileX = minTileX;
+      this.maxTileX = maxTileX;
+      this.minTileY = minTileY;
+      this.maxTileY = maxTileY;
+    }
+    
+    public int compare(Tile tile1, Tile tile2) {
+      
+      int result = getPriorityClass(tile1) - getPriorityClass(tile2);
+      if (result != 0) {
+        return result;
+      }
+
+      long distance1 = getDistance(tile1);
+      long distance2 = getDistance(tile2);
+      
+      return distance1 < distance2 ? -1 : (distance1 == distance2 ? 0 : 1);
+    }
+    
+    // 0 for tiles inside the region, 1 for the preload ring and 2 for tiles of other layers
+    private int getPriorityClass(Tile tile) {
+      
+      if (tile.getLayer() != layer) {
+        return 2;
+      }
+      
+      int x = tile.getX();
+      int y = tile.getY();
+      
+      return x >= minTileX && x <= maxTileX && y >= minTileY && y <= maxTileY ? 0 : 1;
+    }
+    
+    // the squared distance to the region's center (in half tiles to stay integer)
+    private long getDistance(Tile tile) {
+      
+      long dx = 2L * tile.getX() - minTileX - maxTileX;
+      long dy = 2L * tile.getY() - minTileY - maxTileY;
+      
+      return dx * dx + dy * dy;
+    }
+  }
+  
+  public TileLoader(Context context, Map map) {
+    
+    this(context, map, DOWNLOADS_PER_HOST * getHostCount(map), DOWNLOADS_PER_HOST);
+  }
+
+  private static int getHostCount(Map map) {
+    
+    HashSet<String> hosts = new HashSet<String>();
+    for (Layer layer : map.getLayers()) {
+      hosts.add(layer.getUrlHost());
+    }
+    
+    return Math.max(1, hosts.size());
+  }
+
+  public TileLoader(Context context, Map map, int downloadThreads, int downloadsPerHost) {
+    
+    this(MapDatabase.newInstance(context, map), new MissingTiles(map, new File(context.getFilesDir(), "missing-" + map.getName())), downloadThreads, downloadsPerHost);
+  }
+
+  public TileLoader(TileStore tileStore, MissingTiles missingTiles, int downloadThreads, int downloadsPerHost) {
     
-    MapDatabase.newInstance(context);
+    this.tileStore = tileStore;
+    this.missingTiles = missingTiles;
     
     handler = new LoaderHandler(this);
+    decoder = new Decoder(DECODE_THREADS);
+    tileWriter = new TileWriter();
     databaseLoader = new DatabaseLoader();
-    urlLoader = new UrlLoader();
+    urlLoader = new UrlLoader(downloadThreads, downloadsPerHost);
   }
 
   public void onPause() {
 
     databaseLoader.onPause();
     urlLoader.onPause();
+    tileWriter.onPause();
   }
   
   public void onResume() {
 
     databaseLoader.onResume();
     urlLoader.onResume();
+    tileWriter.onResume();
   }
   
   public void onDestroy() {
 
     databaseLoader.onDestroy();
     urlLoader.onDestroy();
+    decoder.onDestroy();
+    tileWriter.onDestroy();
+  }
+  
+  // called when the device (re)connects to a network, probes the network right away if it was considered down
+  public void onNetworkAvailable() {
+    
+    urlLoader.onNetworkAvailable();
   }
   
   public void setLoadListener(LoadListener loadListener) {
@@ -103,15 +313,108 @@ public class TileLoader {
     this.loadListener = loadListener;
   }
 
+  public void setCacheBytes(long cacheBytes) {
+    
+    this.cacheBytes = cacheBytes;
+  }
+  
+  public BitmapPool getBitmapPool() {
+    
+    return bitmapPool;
+  }
+  
+  public MissingTiles getMissingTiles() {
+    
+    return missingTiles;
+  }
+
+  public void setRegion(Layer layer, int minTileX, int maxTileX, int minTileY, int maxTileY) {
+    
+    databaseLoader.setRegion(layer, minTileX, maxTileX, minTileY, maxTileY);
+    urlLoader.setRegion(layer, minTileX, maxTileX, minTileY, maxTileY);
+  }
+  
   public void orderLoadTile(Tile tile) {
 
+    synchronized (loads) {
+      
+      // attach to a running load of the same coordinates
+      Load load = loads.get(tile.getKey());
+      if (load != null) {
+        if (!load.waiters.contains(tile)) {
+          load.waiters.add(tile);
+        }
+        return;
+      }
+      
+      loads.put(tile.getKey(), new Load(tile));
+    }
+    
+    tile.setLoadCancelled(false);
+    tile.setLoadAttempts(0);
+    
     databaseLoader.orderLoad(tile);
   }
 
   public void cancelLoadTile(Tile tile) {
 
-    databaseLoader.cancelLoad(tile);
-    urlLoader.cancelLoad(tile);
+    Tile loadedTile;
+    
+    synchronized (loads) {
+
+      Load load = loads.get(tile.getKey());
+      if (load == null || !load.waiters.remove(tile)) {
+        return;
+      }
+      
+      // keep on loading as long as other tiles are waiting for it
+      if (!load.waiters.isEmpty()) {
+        return;
+      }
+      
+      loads.remove(tile.getKey());
+      loadedTile = load.tile;
+    }
+    
+    // abort the tile if it is being loaded right now
+    loadedTile.setLoadCancelled(true);
+    
+    databaseLoader.cancelLoad(loadedTile);
+    urlLoader.cancelLoad(loadedTile);
+  }
+
+  // hands the result of a load to all tiles waiting for it and notifies the GUI
+  private void finishLoad(Tile tile, int what) {
+    
+    Load load;
+    
+    synchronized (loads) {
+      load = loads.get(tile.getKey());
+      if (load != null && load.tile == tile) {
+        loads.remove(tile.getKey());
+      } else {
+        load = null;
+      }
+    }
+    
+    if (load != null) {
+      for (Tile waiter : load.waiters) {
+        if (waiter != tile) {
+          waiter.setBitmap(tile.getBitmap());
+          bitmapPool.retain(tile.getBitmap());
+          waiter.setLastUsed(tile.getLastUsed());
+          waiter.setLoadFailed(tile.isLoadFailed());
+          waiter.setMissing(tile.isMissing());
+        }
+        handler.obtainMessage(what, waiter).sendToTarget();
+      }
+    }
+    
+    // a cancelled tile isn't handed to the GUI, give back the reference it got from decoding
+    if ((load == null || !load.waiters.contains(tile)) && tile.getBitmap() != null) {
+      bitmapPool.release(tile.getBitmap());
+      tile.setBitmap(null);
+    }
   }
 
   private class DatabaseLoader implements Runnable {
@@ -119,7 +422,8 @@ public class TileLoader {
     private boolean pause;
     private boolean destroy;
     private Thread thread;
-    private ArrayDeque<Tile> queue = new ArrayDeque<Tile>();
+    private RegionComparator comparator = new RegionComparator();
+    private TileQueue queue = new TileQueue(QUEUE_CAPACITY, comparator);
     
     public DatabaseLoader() {
       
@@ -151,6 +455,22 @@ public class TileLoader {
       }
     }
     
+    public void setRegion(Layer layer, int minTileX, int maxTileX, int minTileY, int maxTileY) {
+      
+      synchronized (queue) {
+        comparator.setRegion(layer, minTileX, maxTileX, minTileY, maxTileY);
+        queue.reorder();
+      }
+    }
+    
+    // true if there are no tiles waiting to be read or reading is paused
+    public boolean isIdle() {
+      
+      synchronized (queue) {
+        return pause || queue.isEmpty();
+      }
+    }
+    
     public void orderLoad(Tile tile) {
 
       synchronized (queue) {
@@ -167,7 +487,7 @@ public class TileLoader {
     public void cancelLoad(Tile tile) {
 
       synchronized (queue) {
-        queue.remove(tile);
+        queue.cancel(tile);
       }
     }
 
@@ -175,16 +495,18 @@ public class TileLoader {
 
       Log.i(TAG, "DatabaseThread started.");
 
-      MapDatabase database = MapDatabase.getInstance();
+      TileStore database = tileStore;
       int numTiles = 0;
       
       try {
         
         database.openDatabase();
         
+        ArrayList<Tile> batch = new ArrayList<Tile>(READ_BATCH_SIZE);
+        
         while (true) {
   
-          Tile tile = null;
+          batch.clear();
   
           synchronized (queue) {
             
@@ -199,7 +521,7 @@ public class TileLoader {
               continue;
             }
             
-            if ((tile = queue.poll()) == null) {
+            if (!pollBatch(batch)) {
               Log.i(TAG, "DatabaseThread waiting (loaded " + numTiles + " tiles).");
               queue.wait();
               numTiles = 0;
@@ -207,13 +529,7 @@ public class TileLoader {
             }
           }
   
-          if (getTileFromDatabase(database, tile)) {
-            numTiles++;
-            continue;
-          }
-  
-          // order tile from download thread
-          urlLoader.orderLoad(tile);
+          numTiles += getTilesFromDatabase(database, batch);
         }
         
       } catch (InterruptedException e) {
@@ -225,24 +541,113 @@ public class TileLoader {
       Log.i(TAG, "DatabaseThread has been shut down.");
     }
     
-    private boolean getTileFromDatabase(MapDatabase database, Tile tile) {
-
-      // read image from database
-      if (!database.readTile(tile)) {
+    // polls the most urgent tiles of the same layer (must be called holding the queue lock)
+    private boolean pollBatch(ArrayList<Tile> batch) {
+      
+      Tile tile = queue.poll();
+      if (tile == null) {
         return false;
       }
+      
+      batch.add(tile);
+      
+      while (batch.size() < READ_BATCH_SIZE && (tile = queue.poll()) != null) {
+        if (tile.getLayer() != batch.get(0).getLayer()) {
+          queue.offer(tile);
+          break;
+        }
+        batch.add(tile);
+      }
+      
+      return true;
+    }
+    
+    // reads a batch of tiles in a single query and returns the number of tiles found
+    private int getTilesFromDatabase(TileStore database, ArrayList<Tile> tiles) {
 
-      // notify GUI
-      handler.obtainMessage(LOADED_FROM_DB, tile).sendToTarget();
+      final HashSet<Tile> found = new HashSet<Tile>();
+      
+      // read images from database and decode them while we go on reading the next one
+      database.readTileImages(tiles, new TileStore.TileImageListener() {
+        
+        @Override
+        public void onTileImage(Tile tile, long hash, ByteBuffer image) {
+          
+          found.add(tile);
+          decoder.decode(tile, hash, image);
+        }
+      });
 
-      // update last used if update threshold reached
       long now = System.currentTimeMillis();
-      if (now - tile.getLastUsed() > LAST_USED_THRESHOLD) {
-        tile.setLastUsed(now);
-        database.updateLastUsed(tile);
+      
+      for (Tile tile : tiles) {
+        
+        if (found.contains(tile)) {
+          
+          // update last used if update threshold reached, it's written later together with other tiles
+          if (now - tile.getLastUsed() > LAST_USED_THRESHOLD) {
+            tile.setLastUsed(now);
+            tileWriter.touch(tile);
+          }
+          
+        } else if (!tile.isLoadCancelled()) {
+          
+          // take tile from the write buffer or order it from download thread unless it has been cancelled in the meantime
+          PendingImage image = tileWriter.getImage(tile);
+          if (image != null) {
+            found.add(tile);
+            decoder.decode(tile, image.hash, ByteBuffer.wrap(image.data));
+          } else {
+            urlLoader.orderLoad(tile);
+          }
+        }
       }
       
-      return true;
+      return found.size();
+    }
+  }
+  
+  private class Decoder {
+    
+    private final ExecutorService executor;
+    
+    public Decoder(int threadCount) {
+      
+      executor = Executors.newFixedThreadPool(threadCount);
+    }
+    
+    public void onDestroy() {
+      
+      executor.shutdownNow();
+    }
+    
+    public void decode(final Tile tile, final long hash, final ByteBuffer image) {
+      
+      try {
+        executor.execute(new Runnable() {
+          
+          @Override
+          public void run() {
+            
+            // cancelled while waiting for a decoder
+            if (tile.isLoadCancelled()) {
+              return;
+            }
+            
+            Bitmap bitmap = bitmapPool.decode(hash, image);
+            if (bitmap == null) {
+              Log.w(TAG, "Stored image can't be decoded, downloading it again: " + tile);
+              urlLoader.orderLoad(tile);
+              return;
+            }
+            
+            tile.setBitmap(bitmap);
+            finishLoad(tile, LOADED_FROM_DB);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // decoder has been shut down by onDestroy()
+      }
     }
   }
   
@@ -250,28 +655,51 @@ public class TileLoader {
     
     private boolean pause;
     private boolean destroy;
-    private Thread thread;
-    private ArrayDeque<Tile> queue = new ArrayDeque<Tile>();
+    private Thread[] threads;
+    private final int downloadsPerHost;
+    private RegionComparator comparator = new RegionComparator();
+    private TileQueue queue = new TileQueue(QUEUE_CAPACITY, comparator);
+    
+    // the number of running downloads per host
+    private HashMap<String, Integer> hostDownloads = new HashMap<String, Integer>();
     
-    public UrlLoader() {
+    // the timer re-ordering failed tiles and the randomness for spreading them 
+    private final Timer retryTimer = new Timer("RetryTimer", true);
+    private final Random random = new Random();
+    
+    // the circuit breaker: the number of failed downloads in a row, the time until which
+    // no downloads are started (0 if the network is up) and whether a probe is running
+    private int failureCount;
+    private long breakerTime;
+    private int breakerDelay = BREAKER_DELAY;
+    private boolean probing;
+    
+    public UrlLoader(int threadCount, int downloadsPerHost) {
       
-      thread = new Thread(this);
-      thread.start();
+      this.downloadsPerHost = downloadsPerHost;
+      
+      threads = new Thread[threadCount];
+      for (int i = 0; i < threads.length; i++) {
+        threads[i] = new Thread(this, "DownloadThread-" + i);
+        threads[i].start();
+      }
     }
     
     public void onPause() {
       
       synchronized (queue) {
         pause = true;
-        queue.notify();
+        queue.notifyAll();
       }
     }
     
     public void onDestroy() {
       
+      retryTimer.cancel();
+      
       synchronized (queue) {
         destroy = true;
-        queue.notify();
+        queue.notifyAll();
       }
     }
     
@@ -279,7 +707,25 @@ public class TileLoader {
       
       synchronized (queue) {
         pause = false;
-        queue.notify();
+        queue.notifyAll();
+      }
+    }
+    
+    public void onNetworkAvailable() {
+      
+      synchronized (queue) {
+        if (breakerTime != 0) {
+          breakerTime = System.currentTimeMillis();
+          queue.notify();
+        }
+      }
+    }
+    
+    public void setRegion(Layer layer, int minTileX, int maxTileX, int minTileY, int maxTileY) {
+      
+      synchronized (queue) {
+        comparator.setRegion(layer, minTileX, maxTileX, minTileY, maxTileY);
+        queue.reorder();
       }
     }
     
@@ -290,36 +736,27 @@ public class TileLoader {
         // put tile in order queue
         queue.offer(tile);
 
-        // (re)start thread
-        if (thread == null) {
-          thread = new Thread(this);
-          thread.start();
-        }
-        
-        if (queue.size() == 1) {
-          queue.notify();
-        }
+        queue.notify();
       }
     }
 
     public void cancelLoad(Tile tile) {
       
       synchronized (queue) {
-        queue.remove(tile);
+        queue.cancel(tile);
       }
     }
     
     public void run() {
 
-      Log.i(TAG, "DownloadThread started.");
+      String name = Thread.currentThread().getName();
+      
+      Log.i(TAG, name + " started.");
       
-      MapDatabase database = MapDatabase.getInstance();
       int numTiles = 0;
 
       try {
         
-        database.openDatabase();
-        
         while (true) {
   
           Tile tile = null;
@@ -331,86 +768,499 @@ public class TileLoader {
             }
             
             if (pause) {
-              Log.i(TAG, "DownloadThread paused (downloaded " + numTiles + " tiles).");
+              Log.i(TAG, name + " paused (downloaded " + numTiles + " tiles).");
               queue.wait();
               numTiles = 0;
               continue;
             }
             
-            if ((tile = queue.poll()) == null) {
-              Log.i(TAG, "DownloadThread waiting (downloaded " + numTiles + " tiles).");
-              queue.wait();
+            if ((tile = pollDownload()) == null) {
+              Log.i(TAG, name + " waiting (downloaded " + numTiles + " tiles).");
+              queue.wait(getWaitTime());
               numTiles = 0;
               continue;
             }
           }
   
-          getTileFromUrl(database, tile);
+          int result = DOWNLOAD_FAILED;
+          try {
+            result = getTileFromUrl(tile);
+          } finally {
+            finishDownload(tile, result);
+          }
           
           numTiles++;
         }
         
       } catch (InterruptedException e) {
-        Log.w(TAG, "DownloadThread has been interrupted.");
+        Log.w(TAG, name + " has been interrupted.");
       }
       
-      database.closeDatabase();
+      Log.i(TAG, name + " has been shut down.");
+    }
+    
+    // returns the most urgent tile whose host has a free download slot (must be called holding the queue lock)
+    private Tile pollDownload() {
+      
+      // while the network is down only a single probe is started once the breaker delay is over
+      if (breakerTime != 0 && (probing || System.currentTimeMillis() < breakerTime)) {
+        return null;
+      }
+      
+      Tile tile = null;
+      ArrayList<Tile> skipped = null;
+      
+      while ((tile = queue.poll()) != null) {
+        String host = tile.getLayer().getUrlHost();
+        Integer downloads = hostDownloads.get(host);
+        if (downloads == null || downloads < downloadsPerHost) {
+          hostDownloads.put(host, downloads == null ? 1 : downloads + 1);
+          break;
+        }
+        if (skipped == null) {
+          skipped = new ArrayList<Tile>();
+        }
+        skipped.add(tile);
+      }
+      
+      // put back tiles of busy hosts
+      if (skipped != null) {
+        for (Tile skippedTile : skipped) {
+          queue.offer(skippedTile);
+        }
+      }
+      
+      if (tile != null && breakerTime != 0) {
+        probing = true;
+      }
+      
+      return tile;
+    }
+    
+    // the milliseconds to wait for new work (0 to wait until notified, must be called holding the queue lock)
+    private long getWaitTime() {
+      
+      if (breakerTime == 0 || probing) {
+        return 0;
+      }
+      
+      return Math.max(1, breakerTime - System.currentTimeMillis());
+    }
+    
+    // releases the host's download slot, updates the circuit breaker and retries or fails the tile
+    private void finishDownload(Tile tile, int result) {
+      
+      boolean restored = false;
+      boolean retry = false;
+      
+      synchronized (queue) {
+        
+        String host = tile.getLayer().getUrlHost();
+        Integer downloads = hostDownloads.get(host);
+        if (downloads == null || downloads <= 1) {
+          hostDownloads.remove(host);
+        } else {
+          hostDownloads.put(host, downloads - 1);
+        }
+        
+        if (result == DOWNLOAD_OK || result == DOWNLOAD_REJECTED || result == DOWNLOAD_MISSING) {
+          
+          // the server answered, so the network is up
+          restored = breakerTime != 0;
+          failureCount = 0;
+          breakerTime = 0;
+          breakerDelay = BREAKER_DELAY;
+          
+        } else if (result == DOWNLOAD_FAILED) {
+          
+          failureCount++;
+          
+          if (probing) {
+            breakerTime = System.currentTimeMillis() + breakerDelay;
+            breakerDelay = Math.min(2 * breakerDelay, MAX_BREAKER_DELAY);
+          } else if (breakerTime == 0 && failureCount >= BREAKER_THRESHOLD) {
+            Log.w(TAG, "Network seems to be down after " + failureCount + " failed downloads.");
+            breakerTime = System.currentTimeMillis() + breakerDelay;
+          }
+          
+          // tiles failing while the network is down are reloaded once it is back
+          retry = breakerTime == 0 && tile.getLoadAttempts() < MAX_RETRIES;
+        }
+        
+        probing = false;
+        
+        queue.notifyAll();
+      }
       
-      Log.i(TAG, "DownloadThread has been shut down.");
+      if (restored) {
+        Log.i(TAG, "Network is up again.");
+        handler.obtainMessage(CONNECTIVITY_RESTORED).sendToTarget();
+      }
+      
+      if (result == DOWNLOAD_FAILED) {
+        if (retry) {
+          scheduleRetry(tile);
+        } else {
+          tile.setLoadFailed(true);
+          finishLoad(tile, LOAD_FAILED);
+        }
+      } else if (result == DOWNLOAD_REJECTED) {
+        tile.setLoadFailed(true);
+        finishLoad(tile, LOAD_FAILED);
+      } else if (result == DOWNLOAD_MISSING) {
+        missingTiles.setMissing(tile);
+        tile.setLoadFailed(true);
+        tile.setMissing(true);
+        finishLoad(tile, LOAD_FAILED);
+      }
     }
     
-    private boolean getTileFromUrl(MapDatabase database, Tile tile) {
+    // re-orders a failed tile after an exponentially growing, randomly spread delay
+    private void scheduleRetry(final Tile tile) {
+      
+      int attempts = tile.getLoadAttempts();
+      tile.setLoadAttempts(attempts + 1);
+      
+      int delay = Math.min(RETRY_DELAY << attempts, MAX_RETRY_DELAY);
+      delay += random.nextInt(delay / 2 + 1);
+
+      Log.i(TAG, "Retrying in " + delay + " ms: " + tile);
+      
+      try {
+        retryTimer.schedule(new TimerTask() {
+          
+          @Override
+          public void run() {
+            if (!tile.isLoadCancelled()) {
+              orderLoad(tile);
+            }
+          }
+        }, delay);
+      } catch (IllegalStateException e) {
+        // timer has been cancelled by onDestroy()
+      }
+    }
+    
+    private int getTileFromUrl(Tile tile) {
 
       try {
 
+        // skip tiles cancelled while waiting for a download slot
+        if (tile.isLoadCancelled()) {
+          return DOWNLOAD_CANCELLED;
+        }
+        
         // open http stream
         URL url = new URL(tile.getUrl());
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
         connection.addRequestProperty("referer", "http://map.geo.admin.ch/");
+        
+        // client errors (e.g. tiles not available) won't go away by retrying
+        int responseCode = connection.getResponseCode();
+        if (responseCode == HttpURLConnection.HTTP_NOT_FOUND || responseCode == HttpURLConnection.HTTP_GONE) {
+          Log.i(TAG, "Tile doesn't exist (HTTP " + responseCode + "): " + tile);
+          connection.disconnect();
+          return DOWNLOAD_MISSING;
+        }
+        if (responseCode >= 400 && responseCode < 500) {
+          Log.w(TAG, "Download rejected with HTTP " + responseCode + ": " + tile);
+          connection.disconnect();
+          return DOWNLOAD_REJECTED;
+        }
+        
         InputStream inputStream = connection.getInputStream();
 
-        // read inputStream into byte[]
+        // read inputStream into byte[], abort as soon as the tile has been cancelled
         int numRead;
-        byte[] block = new byte[16384];
+        byte[] block = new byte[4096];
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         while ((numRead = inputStream.read(block, 0, block.length)) != -1) {
+          if (tile.isLoadCancelled()) {
+            break;
+          }
           buffer.write(block, 0, numRead);
         }
         inputStream.close();
         connection.disconnect();
+        
+        if (tile.isLoadCancelled()) {
+          Log.i(TAG, "Download cancelled: " + tile);
+          return DOWNLOAD_CANCELLED;
+        }
+        
         buffer.flush();
         byte[] image = buffer.toByteArray();
+        long hash = ImageTable.getHash(image);
 
         // convert byte[] to Bitmap
-        Bitmap bitmap = BitmapFactory.decodeByteArray(image, 0, image.length);
-        if (bitmap != null) {
-          tile.setBitmap(bitmap);
-          tile.setLastUsed(System.currentTimeMillis());
-          handler.obtainMessage(LOADED_FROM_URL, tile).sendToTarget();
-          insertOrUpdateTileBitmap(database, tile, image);
-          return true;
+        Bitmap bitmap = bitmapPool.decode(hash, ByteBuffer.wrap(image));
+        if (bitmap == null) {
+          Log.w(TAG, "Downloaded image can't be decoded: " + tile);
+          return DOWNLOAD_REJECTED;
         }
+        
+        tile.setBitmap(bitmap);
+        tile.setLastUsed(System.currentTimeMillis());
+        finishLoad(tile, LOADED_FROM_URL);
+        
+        tileWriter.write(tile, image, hash);
+        
+        return DOWNLOAD_OK;
 
       } catch (Exception e) {
         Log.w(TAG, "Exception: " + e.getMessage(), e);
       }
 
-      // download failed
-      tile.setLoadFailed(true);
-      handler.obtainMessage(LOAD_FAILED, tile).sendToTarget();
+      return DOWNLOAD_FAILED;
+    }
+  }
+  
+  private class TileWriter implements Runnable {
+    
+    private boolean pause;
+    private boolean destroy;
+    private Thread thread;
+    
+    // the tiles and images waiting to be written by tile key, in order of arrival
+    private LinkedHashMap<Long, Tile> tiles = new LinkedHashMap<Long, Tile>();
+    private HashMap<Long, PendingImage> images = new HashMap<Long, PendingImage>();
+    
+    // the keys of the tiles waiting for their last used time to be updated, each only once
+    private final LongSet touchedKeys = new LongSet(TOUCH_BATCH_SIZE);
+    
+    // the time the oldest waiting tile arrived
+    private long firstWriteTime;
+    
+    public TileWriter() {
+      
+      thread = new Thread(this, "WriterThread");
+      thread.start();
+    }
+    
+    public void onPause() {
+      
+      synchronized (tiles) {
+        pause = true;
+        tiles.notify();
+      }
+    }
+    
+    public void onResume() {
+      
+      synchronized (tiles) {
+        pause = false;
+        tiles.notify();
+      }
+    }
+    
+    public void onDestroy() {
+      
+      synchronized (tiles) {
+        destroy = true;
+        tiles.notify();
+      }
+    }
+    
+    // buffers a tile to be written, never blocks on database access
+    public void write(Tile tile, byte[] image, long hash) {
+      
+      synchronized (tiles) {
+        
+        if (tiles.size() >= WRITE_BUFFER_SIZE && !tiles.containsKey(tile.getKey())) {
+          Log.w(TAG, "Write buffer full, not storing tile: " + tile);
+          return;
+        }
+        
+        if (tiles.isEmpty() && touchedKeys.size() == 0) {
+          firstWriteTime = System.currentTimeMillis();
+        }
+        
+        tiles.put(tile.getKey(), tile);
+        images.put(tile.getKey(), new PendingImage(image, hash));
+        
+        if (tiles.size() == 1 || tiles.size() >= WRITE_BATCH_SIZE) {
+          tiles.notify();
+        }
+      }
+    }
+    
+    // buffers a tile whose last used time has to be updated, never blocks on database access
+    public void touch(Tile tile) {
+      
+      synchronized (tiles) {
+        
+        if (tiles.isEmpty() && touchedKeys.size() == 0) {
+          firstWriteTime = System.currentTimeMillis();
+        }
+        
+        if (!touchedKeys.add(tile.getKey())) {
+          return;
+        }
+        
+        if (touchedKeys.size() == 1 || touchedKeys.size() >= TOUCH_BATCH_SIZE) {
+          tiles.notify();
+        }
+      }
+    }
+    
+    // returns the image of a tile that hasn't been written yet
+    public PendingImage getImage(Tile tile) {
+      
+      synchronized (tiles) {
+        return images.get(tile.getKey());
+      }
+    }
+    
+    public void run() {
+
+      Log.i(TAG, "WriterThread started.");
+
+      TileStore database = tileStore;
+      ArrayList<Tile> batchTiles = new ArrayList<Tile>();
+      ArrayList<byte[]> batchImages = new ArrayList<byte[]>();
+      long[] batchHashes = new long[WRITE_BUFFER_SIZE];
+      long[] batchTouchedKeys = new long[TOUCH_BATCH_SIZE];
+      int batchTouchedCount = 0;
+      
+      // whether there's nothing left to compact and whether we've had nothing to write for COMPACT_DELAY
+      boolean compacted = false;
+      boolean idle = false;
       
-      return false;
+      // whether to save the missing tiles before pausing
+      boolean saveMissing = false;
+      
+      try {
+        
+        missingTiles.load();
+        database.openDatabase();
+        
+        while (true) {
+          
+          synchronized (tiles) {
+            
+            // write everything that's left before pausing or shutting down
+            if (tiles.isEmpty() && touchedKeys.size() == 0) {
+              
+              if (destroy) {
+                break;
+              }
+              saveMissing = pause && missingTiles.isDirty();
+              if (!saveMissing && compacted) {
+                tiles.wait();
+                continue;
+              }
+              if (!saveMissing && !idle) {
+                idle = true;
+                tiles.wait(COMPACT_DELAY);
+                continue;
+              }
+              
+            } else {
+              
+              idle = false;
+              
+              // wait for a full batch unless we're pausing or shutting down
+              if (!pause && !destroy && tiles.size() < WRITE_BATCH_SIZE && touchedKeys.size() < TOUCH_BATCH_SIZE) {
+                long delay = firstWriteTime + WRITE_DELAY - System.currentTimeMillis();
+                if (delay > 0) {
+                  tiles.wait(delay);
+                  continue;
+                }
+              }
+              
+              batchTiles.clear();
+              batchImages.clear();
+              if (batchHashes.length < tiles.size()) {
+                batchHashes = new long[tiles.size()];
+              }
+              for (Tile tile : tiles.values()) {
+                PendingImage image = images.get(tile.getKey());
+                batchHashes[batchTiles.size()] = image.hash;
+                batchTiles.add(tile);
+                batchImages.add(image.data);
+              }
+              
+              // take the touched keys so new touches can be recorded while we're writing
+              if (batchTouchedKeys.length < touchedKeys.size()) {
+                batchTouchedKeys = new long[touchedKeys.size()];
+              }
+              batchTouchedCount = touchedKeys.drainTo(batchTouchedKeys);
+            }
+          }
+          
+          if (saveMissing) {
+            missingTiles.save();
+            continue;
+          }
+          
+          // compact the store in small steps while there's nothing to read or write, 
+          // writes coming in between two steps go first
+          if (idle) {
+            missingTiles.save();
+            if (databaseLoader.isIdle()) {
+              compacted = compact(database);
+            } else {
+              idle = false;
+            }
+            continue;
+          }
+          
+          try {
+            if (!batchTiles.isEmpty()) {
+              long maxBytes = cacheBytes;
+              database.writeTiles(batchTiles, batchImages, batchHashes, maxBytes / 100 * CACHE_LOW_WATERMARK, maxBytes);
+              compacted = false;
+            }
+          } catch (RuntimeException e) {
+            Log.w(TAG, "Writing tiles failed: " + e.getMessage(), e);
+          }
+          
+          try {
+            if (batchTouchedCount > 0) {
+              database.updateLastUsed(batchTouchedKeys, batchTouchedCount, System.currentTimeMillis());
+            }
+          } catch (RuntimeException e) {
+            Log.w(TAG, "Updating last used failed: " + e.getMessage(), e);
+          }
+          
+          // remove written tiles unless they've been replaced by a newer download in the meantime
+          synchronized (tiles) {
+            for (int i = 0; i < batchTiles.size(); i++) {
+              Long key = batchTiles.get(i).getKey();
+              PendingImage image = images.get(key);
+              if (image != null && image.data == batchImages.get(i)) {
+                tiles.remove(key);
+                images.remove(key);
+              }
+            }
+            firstWriteTime = System.currentTimeMillis();
+          }
+        }
+        
+      } catch (InterruptedException e) {
+        Log.w(TAG, "WriterThread has been interrupted.");
+      }
+      
+      database.closeDatabase();
+      missingTiles.save();
+
+      Log.i(TAG, "WriterThread has been shut down.");
     }
     
-    private void insertOrUpdateTileBitmap(MapDatabase database, Tile tile, byte[] image) {
+    // runs a single compaction step, returns true if there's nothing left to compact
+    private boolean compact(TileStore database) {
       
-      if (database.isTileExisting(tile)) {
-        database.updateBitmap(tile, image);
-      } else {
-        if (database.getTileCount() > MAX_NUMBER_OF_TILES) {
-          database.deleteLeastRecentlyUsed(DELETE_CHUNK_SIZE);
+      try {
+        long bytes = database.compact();
+        if (bytes > 0) {
+          Log.i(TAG, "Compacted store, reclaimed " + bytes + " bytes.");
         }
-        database.insertTile(tile, image);
+        return bytes == 0;
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Compacting store failed: " + e.getMessage(), e);
+        return true;
       }
     }
   }
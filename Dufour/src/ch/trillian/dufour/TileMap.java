@@ -0,0 +1,168 @@
+package ch.trillian.dufour;
+
+// the tiles of any layer by their key in an open addressing hash table with linear probing, kept in a list by last use
+// which is linked through the tiles themselves, so neither lookups nor updates box keys or allocate anything
+public class TileMap {
+
+  // the keys and tiles by slot, an empty slot has no tile (keys may well be 0)
+  private final long[] keys;
+  private final Tile[] tiles;
+  private final int mask;
+
+  // the maximum number of tiles, the table is never more than half full
+  private final int capacity;
+  private int size;
+
+  // the most and the least recently used tile
+  private Tile newest;
+  private Tile oldest;
+
+  public TileMap(int capacity) {
+
+    this.capacity = Math.max(1, capacity);
+
+    int tableSize = Integer.highestOneBit(2 * this.capacity - 1) << 1;
+    keys = new long[tableSize];
+    tiles = new Tile[tableSize];
+    mask = tableSize - 1;
+  }
+
+  public int getCapacity() {
+
+    return capacity;
+  }
+
+  public int size() {
+
+    return size;
+  }
+
+  // returns the tile of a key and makes it the most recently used one, returns null if there's no such tile
+  public Tile get(long key) {
+
+    Tile tile = peek(key);
+
+    if (tile != null && tile != newest) {
+      unlink(tile);
+      linkNewest(tile);
+    }
+
+    return tile;
+  }
+
+  // returns the tile of a key without touching it, returns null if there's no such tile
+  public Tile peek(long key) {
+
+    int slot = findSlot(key);
+
+    return slot < 0 ? null : tiles[slot];
+  }
+
+  // adds a tile which must not be in the map yet as the most recently used one,
+  // returns the least recently used tile if it had to be evicted to make room, null otherwise
+  public Tile put(Tile tile) {
+
+    Tile evicted = null;
+    if (size == capacity) {
+      evicted = remove(oldest.getKey());
+    }
+
+    int slot = getSlot(tile.getKey());
+    while (tiles[slot] != null) {
+      slot = (slot + 1) & mask;
+    }
+
+    keys[slot] = tile.getKey();
+    tiles[slot] = tile;
+    size++;
+    linkNewest(tile);
+
+    return evicted;
+  }
+
+  // removes the least recently used tile, returns null if there's no tile left
+  public Tile removeOldest() {
+
+    return oldest == null ? null : remove(oldest.getKey());
+  }
+
+  // removes the tile of a key, returns null if there's no such tile
+  public Tile remove(long key) {
+
+    int slot = findSlot(key);
+    if (slot < 0) {
+      return null;
+    }
+
+    Tile tile = tiles[slot];
+    unlink(tile);
+    size--;
+
+    // shift following tiles of the same probe sequence back so lookups don't stop at the gap
+    int gap = slot;
+    int next = slot;
+    while (true) {
+      next = (next + 1) & mask;
+      if (tiles[next] == null) {
+        break;
+      }
+      int home = getSlot(keys[next]);
+      boolean stays = gap <= next ? gap < home && home <= next : gap < home || home <= next;
+      if (!stays) {
+        keys[gap] = keys[next];
+        tiles[gap] = tiles[next];
+        gap = next;
+      }
+    }
+    tiles[gap] = null;
+
+    return tile;
+  }
+
+  private int findSlot(long key) {
+
+    int slot = getSlot(key);
+    while (tiles[slot] != null) {
+      if (keys[slot] == key) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+
+    return -1;
+  }
+
+  // spreads the bits of the key (fibonacci hashing) since tiles next to each other have similar keys
+  private int getSlot(long key) {
+
+    return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+  }
+
+  private void linkNewest(Tile tile) {
+
+    tile.older = newest;
+    tile.newer = null;
+    if (newest != null) {
+      newest.newer = tile;
+    } else {
+      oldest = tile;
+    }
+    newest = tile;
+  }
+
+  private void unlink(Tile tile) {
+
+    if (tile.newer != null) {
+      tile.newer.older = tile.older;
+    } else {
+      newest = tile.older;
+    }
+    if (tile.older != null) {
+      tile.older.newer = tile.newer;
+    } else {
+      oldest = tile.newer;
+    }
+    tile.newer = null;
+    tile.older = null;
+  }
+}
@@ -0,0 +1,93 @@
+package ch.trillian.dufour;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+public class TileQueue {
+
+  // the heap is rebuilt once it holds this many times more entries than there are queued tiles
+  private static final int GARBAGE_FACTOR = 2;
+
+  // the queued tiles by their key
+  private final HashMap<Long, Tile> tiles;
+
+  // the tiles in order, may still contain cancelled tiles which are skipped when polled
+  private PriorityQueue<Tile> heap;
+
+  private final Comparator<Tile> comparator;
+
+  public TileQueue(int capacity, Comparator<Tile> comparator) {
+
+    this.comparator = comparator;
+
+    tiles = new HashMap<Long, Tile>(capacity);
+    heap = new PriorityQueue<Tile>(capacity, comparator);
+  }
+
+  public int size() {
+
+    return tiles.size();
+  }
+
+  public boolean isEmpty() {
+
+    return tiles.isEmpty();
+  }
+
+  public void offer(Tile tile) {
+
+    Tile previous = tiles.put(tile.getKey(), tile);
+    if (previous == tile) {
+      return;
+    }
+
+    heap.offer(tile);
+
+    if (heap.size() > GARBAGE_FACTOR * tiles.size() + 16) {
+      reorder();
+    }
+  }
+
+  public Tile poll() {
+
+    Tile tile;
+    while ((tile = heap.poll()) != null) {
+
+      // skip tiles that have been cancelled (or replaced) since they were queued
+      Long key = tile.getKey();
+      if (tiles.get(key) == tile) {
+        tiles.remove(key);
+        return tile;
+      }
+    }
+
+    return null;
+  }
+
+  public boolean cancel(Tile tile) {
+
+    Long key = tile.getKey();
+    if (tiles.get(key) != tile) {
+      return false;
+    }
+
+    // the heap entry is dropped lazily when it is polled or the heap is rebuilt
+    tiles.remove(key);
+
+    return true;
+  }
+
+  public void clear() {
+
+    tiles.clear();
+    heap.clear();
+  }
+
+  // rebuilds the heap from the queued tiles, must be called after the comparator's order has been changed
+  public void reorder() {
+
+    heap = new PriorityQueue<Tile>(Math.max(1, tiles.size()), comparator);
+    heap.addAll(tiles.values());
+  }
+}
@@ -0,0 +1,36 @@
+package ch.trillian.dufour;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// the persistent storage of encoded tile images, shared by all loader threads
+public interface TileStore {
+
+  public interface TileImageListener {
+
+    // the image may be kept after the call, the store never overwrites it; hash is ImageTable.getHash() of the image
+    public void onTileImage(Tile tile, long hash, ByteBuffer image);
+  }
+
+  // opens the store, every call must be matched by a call to closeDatabase()
+  public void openDatabase();
+
+  public void closeDatabase();
+
+  public int getTileCount();
+
+  public long getTileBytes();
+
+  // reads the images and last used times of a number of tiles, every tile found is passed to the listener
+  public void readTileImages(List<Tile> tiles, TileImageListener listener);
+
+  // inserts or replaces a number of tiles given their images and the hashes of the images (see ImageTable.getHash()),
+  // if the images exceed maxBytes afterwards the least recently used tiles are deleted until they fit into minBytes
+  public void writeTiles(List<Tile> tiles, List<byte[]> images, long[] hashes, long minBytes, long maxBytes);
+
+  // sets the last used time of the first count tiles in keys
+  public void updateLastUsed(long[] keys, int count, long lastUsed);
+
+  // frees some of the space of deleted and replaced tiles, returns the number of bytes freed (0 if there's nothing left to free)
+  public long compact();
+}
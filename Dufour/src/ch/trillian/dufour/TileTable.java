@@ -1,28 +1,44 @@
 package ch.trillian.dufour;
 
+import java.util.HashMap;
+
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 public class TileTable {
 
   public static final String TABLE_NAME = "TILE";
-  public static final String COL_LAYER_ID = "LAYER_ID";
-  public static final String COL_X = "X";
-  public static final String COL_Y = "Y";
+  public static final String COL_KEY = "TILE_KEY";
   public static final String COL_LAST_USED = "LAST_USED";
-  public static final String COL_IMAGE = "IMAGE";
+  public static final String COL_IMAGE_HASH = "IMAGE_HASH";
+  public static final String COL_SIZE = "SIZE";
+
+  // whether the tile has been imported (see MapDatabase.importTiles()), imported tiles are never evicted
+  public static final String COL_IMPORTED = "IMPORTED";
+
+  // the column of version 2 to 4 which held the image itself instead of it's hash
+  private static final String COL_IMAGE = "IMAGE";
+
+  // the columns of version 1 which identified tiles by layer name and coordinates
+  private static final String COL_V1_LAYER_ID = "LAYER_ID";
+  private static final String COL_V1_X = "X";
+  private static final String COL_V1_Y = "Y";
 
   private static final String SQL_CREATE_TABLE = "CREATE TABLE " 
       + TABLE_NAME
       + "(" 
-      + COL_LAYER_ID + " TEXT NOT NULL, " 
-      + COL_X + " INTEGER NOT NULL, " 
-      + COL_Y + " INTEGER NOT NULL, " 
+      + COL_KEY + " INTEGER PRIMARY KEY, " 
       + COL_LAST_USED + " INTEGER NOT NULL, " 
-      + COL_IMAGE + " BLOB NOT NULL, "
-      + "PRIMARY KEY (" + COL_LAYER_ID + ", " + COL_X + ", " + COL_Y + ")"
+      + COL_IMAGE_HASH + " INTEGER NOT NULL, "
+      + COL_SIZE + " INTEGER NOT NULL, "
+      + COL_IMPORTED + " INTEGER NOT NULL DEFAULT 0"
       + ");";
 
+  // the table as of version 2, later versions are reached by altering it
+  private static final String SQL_CREATE_TABLE_V2 = "CREATE TABLE " + TABLE_NAME + "(" + COL_KEY + " INTEGER PRIMARY KEY, " + COL_LAST_USED + " INTEGER NOT NULL, " + COL_IMAGE + " BLOB NOT NULL);";
+
   private static final String SQL_CREATE_INDEX = "CREATE INDEX " + TABLE_NAME + "_" + COL_LAST_USED +"_INDEX ON " + TABLE_NAME + "(" + COL_LAST_USED + ")";
 
   public static void onCreate(SQLiteDatabase database) {
@@ -31,10 +47,106 @@ public class TileTable {
     database.execSQL(SQL_CREATE_INDEX);
   }
 
-  public static void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
+  public static void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion, Map map) {
+    
+    Log.w(TileTable.class.getName(), "Upgrading table " + TABLE_NAME + " from version " + oldVersion + " to " + newVersion);
     
-    Log.w(TileTable.class.getName(), "Upgrading table " + TABLE_NAME + " from version " + oldVersion + " to " + newVersion + ", which will destroy all old data.");
-    database.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+    if (oldVersion < 2) {
+      upgradeToPackedKeys(database, map);
+    }
+    
+    if (oldVersion < 3) {
+      database.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COL_SIZE + " INTEGER NOT NULL DEFAULT 0");
+      database.execSQL("UPDATE " + TABLE_NAME + " SET " + COL_SIZE + " = LENGTH(" + COL_IMAGE + ")");
+    }
+    
+    if (oldVersion < 5) {
+      upgradeToImageHashes(database);
+    } else if (oldVersion < 7) {
+      // the table rebuilt above has the column already
+      database.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + COL_IMPORTED + " INTEGER NOT NULL DEFAULT 0");
+    }
+  }
+  
+  // moves the images into the image table, storing each distinct image only once
+  private static void upgradeToImageHashes(SQLiteDatabase database) {
+    
+    long start = System.currentTimeMillis();
+    
+    // the triggers of the layer stats move along with the renamed table and are dropped with it
+    database.execSQL("ALTER TABLE " + TABLE_NAME + " RENAME TO " + TABLE_NAME + "_V4");
+    database.execSQL("DROP INDEX IF EXISTS " + TABLE_NAME + "_" + COL_LAST_USED +"_INDEX");
     onCreate(database);
+    ImageTable.onCreate(database);
+    
+    SQLiteStatement imageStatement = database.compileStatement(ImageTable.SQL_INSERT_IMAGE);
+    SQLiteStatement tileStatement = database.compileStatement("INSERT INTO " + TABLE_NAME + " (" + COL_KEY + ", " + COL_LAST_USED + ", " + COL_IMAGE_HASH + ", " + COL_SIZE + ") SELECT " + COL_KEY + ", " + COL_LAST_USED + ", ?, " + COL_SIZE + " FROM " + TABLE_NAME + "_V4 WHERE " + COL_KEY + " = ?");
+    Cursor cursor = database.rawQuery("SELECT " + COL_KEY + ", " + COL_IMAGE + " FROM " + TABLE_NAME + "_V4", new String[] {});
+    int numTiles = 0;
+    int numImages = 0;
+    
+    try {
+      while (cursor.moveToNext()) {
+        byte[] image = cursor.getBlob(1);
+        long hash = ImageTable.getHash(image);
+        imageStatement.clearBindings();
+        imageStatement.bindLong(1, hash);
+        imageStatement.bindBlob(2, image);
+        if (imageStatement.executeInsert() >= 0) {
+          numImages++;
+        }
+        tileStatement.clearBindings();
+        tileStatement.bindLong(1, hash);
+        tileStatement.bindLong(2, cursor.getLong(0));
+        tileStatement.executeInsert();
+        numTiles++;
+      }
+    } finally {
+      cursor.close();
+    }
+    
+    database.execSQL("DROP TABLE " + TABLE_NAME + "_V4");
+    
+    Log.w(TileTable.class.getName(), "Converted " + numTiles + " tiles to " + numImages + " images in " + (System.currentTimeMillis() - start) + " ms");
+  }
+  
+  // copies all tiles of known layers into a table keyed by Tile.getKey() 
+  private static void upgradeToPackedKeys(SQLiteDatabase database, Map map) {
+    
+    long start = System.currentTimeMillis();
+    
+    HashMap<String, Layer> layers = new HashMap<String, Layer>();
+    for (Layer layer : map.getLayers()) {
+      layers.put(layer.getName(), layer);
+    }
+    
+    database.execSQL("ALTER TABLE " + TABLE_NAME + " RENAME TO " + TABLE_NAME + "_V1");
+    database.execSQL("DROP INDEX IF EXISTS " + TABLE_NAME + "_" + COL_LAST_USED +"_INDEX");
+    database.execSQL(SQL_CREATE_TABLE_V2);
+    
+    // copy images inside SQLite, only the coordinates pass through java
+    SQLiteStatement statement = database.compileStatement("INSERT OR IGNORE INTO " + TABLE_NAME + " (" + COL_KEY + ", " + COL_LAST_USED + ", " + COL_IMAGE + ") SELECT ?, " + COL_LAST_USED + ", " + COL_IMAGE + " FROM " + TABLE_NAME + "_V1 WHERE ROWID = ?");
+    Cursor cursor = database.rawQuery("SELECT ROWID, " + COL_V1_LAYER_ID + ", " + COL_V1_X + ", " + COL_V1_Y + " FROM " + TABLE_NAME + "_V1", new String[] {});
+    int numTiles = 0;
+    
+    try {
+      while (cursor.moveToNext()) {
+        Layer layer = layers.get(cursor.getString(1));
+        if (layer != null) {
+          statement.clearBindings();
+          statement.bindLong(1, Tile.getKey(layer, cursor.getInt(2), cursor.getInt(3)));
+          statement.bindLong(2, cursor.getLong(0));
+          statement.executeInsert();
+          numTiles++;
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+    
+    database.execSQL("DROP TABLE " + TABLE_NAME + "_V1");
+    database.execSQL(SQL_CREATE_INDEX);
+    
+    Log.w(TileTable.class.getName(), "Converted " + numTiles + " tiles in " + (System.currentTimeMillis() - start) + " ms");
   }
 }